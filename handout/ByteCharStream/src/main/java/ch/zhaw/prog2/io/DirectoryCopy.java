@@ -0,0 +1,333 @@
+package ch.zhaw.prog2.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * Copies a directory tree recursively, copying the files concurrently.
+ *
+ * The tree is walked with {@link Files#walkFileTree(Path, java.nio.file.FileVisitor)}, directories are created
+ * while walking and each regular file is copied by a task of a fixed thread pool. The number of waiting tasks
+ * is bounded, so the walk pauses when the copies fall behind and trees with any number of files can be copied.
+ *
+ * A file is skipped if the target file exists and has the same size and modification time (in seconds),
+ * as the target gets the modification time of the source after the copy. Otherwise the file is copied into a new temporary
+ * file ".&lt;name&gt;.&lt;random number&gt;.part" next to the target, which is renamed when the copy is complete.
+ * The temporary file is created exclusively, so it never collides with another copy or a file of the source tree.
+ * An interrupted copy can be resumed by running it again: completed files are skipped, incomplete files are copied again.
+ * Temporary files left over by an interrupted copy are deleted when their directory is visited,
+ * unless the source directory contains a file of the same name.
+ *
+ * While a file is copied the CRC-32C checksum of its content is computed. If verification is enabled,
+ * the copy is read again and its checksum compared before it is renamed.
+ * Symbolic links and other special files are not copied.
+ */
+public class DirectoryCopy {
+	private static final String PART_SUFFIX = ".part";
+	private static final Pattern PART_NAME = Pattern.compile("\\..+\\.[0-9]+" + Pattern.quote(PART_SUFFIX));
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	private final int threads;
+	private final boolean verify;
+
+	/**
+	 * Creates a copier using one thread per available processor and verifying the copies.
+	 */
+	public DirectoryCopy() {
+		this(Runtime.getRuntime().availableProcessors(), true);
+	}
+
+	/**
+	 * @param threads number of files copied concurrently
+	 * @param verify  true to read each copy again and compare its checksum
+	 */
+	public DirectoryCopy(int threads, boolean verify) {
+		if (threads <= 0) throw new IllegalArgumentException("Number of threads must be positive");
+		this.threads = threads;
+		this.verify = verify;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.out.println("Usage: DirectoryCopy <source-directory> <target-directory> [<threads>]");
+			return;
+		}
+		DirectoryCopy copier = args.length == 3 ? new DirectoryCopy(Integer.parseInt(args[2]), true) : new DirectoryCopy();
+		try {
+			Result result = copier.copy(Paths.get(args[0]), Paths.get(args[1]));
+			System.out.println(result);
+			for (String failure : result.getFailures()) {
+				System.out.println("  failed: " + failure);
+			}
+		} catch (IOException e) {
+			System.out.println("Copy failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the source directory tree into the target directory, which is created if necessary.
+	 * Failures of single files are collected in the result, the other files are copied anyway.
+	 *
+	 * @return numbers of copied and skipped files
+	 * @throws IOException if the source is not a directory, contains the target or the copy is interrupted
+	 */
+	public Result copy(Path source, Path target) throws IOException {
+		if (!Files.isDirectory(source)) throw new IOException("Not a directory: " + source);
+		if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+			throw new IOException("Target directory must not be inside the source directory: " + target);
+		}
+		long start = System.nanoTime();
+		Result result = new Result();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Semaphore pending = new Semaphore(4 * threads);
+		try {
+			Files.walkFileTree(source, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+					try {
+						Path targetDirectory = target.resolve(source.relativize(directory));
+						Files.createDirectories(targetDirectory);
+						deleteLeftovers(directory, targetDirectory, result);
+						return FileVisitResult.CONTINUE;
+					} catch (IOException e) {
+						result.addFailure(directory, e);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws InterruptedIOException {
+					if (!attributes.isRegularFile()) {
+						result.other.incrementAndGet();
+						return FileVisitResult.CONTINUE;
+					}
+					Path targetFile = target.resolve(source.relativize(file));
+					try {
+						pending.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Copy interrupted");
+					}
+					executor.execute(() -> {
+						try {
+							copyFile(file, attributes, targetFile, result);
+						} finally {
+							pending.release();
+						}
+					});
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					result.addFailure(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} finally {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private void copyFile(Path source, BasicFileAttributes attributes, Path target, Result result) {
+		try {
+			FileTime modified = attributes.lastModifiedTime();
+			if (isUpToDate(target, attributes.size(), modified)) {
+				result.skipped.incrementAndGet();
+				return;
+			}
+			Path part = createPart(target);
+			try {
+				long checksum = copyWithChecksum(source, part);
+				if (verify && checksum(part) != checksum) throw new IOException("Checksum of the copy differs");
+				Files.setLastModifiedTime(part, modified);
+				Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(part);
+			}
+			result.copied.incrementAndGet();
+			result.bytes.addAndGet(attributes.size());
+		} catch (IOException | RuntimeException e) {
+			result.addFailure(source, e);
+		}
+	}
+
+	/**
+	 * Creates a new temporary file next to the target. Unlike {@link Files#createTempFile(Path, String, String)}
+	 * the file gets the default permissions, which the target keeps after the rename.
+	 */
+	private static Path createPart(Path target) throws IOException {
+		while (true) {
+			Path part = target.resolveSibling("." + target.getFileName() + "."
+				+ Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + PART_SUFFIX);
+			try {
+				return Files.createFile(part);
+			} catch (FileAlreadyExistsException e) {
+				// try the next name
+			}
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of an interrupted copy in the target directory. A file looking like a temporary file
+	 * is kept if the source directory contains a file of the same name, as it is then a copy of that file.
+	 * Called before the files of the directory are copied, so no copy of this run is writing a temporary file there.
+	 */
+	private static void deleteLeftovers(Path sourceDirectory, Path targetDirectory, Result result) {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(targetDirectory,
+				entry -> PART_NAME.matcher(entry.getFileName().toString()).matches())) {
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry) && !Files.exists(sourceDirectory.resolve(entry.getFileName()))) {
+					Files.deleteIfExists(entry);
+				}
+			}
+		} catch (IOException e) {
+			result.addFailure(targetDirectory, e);
+		}
+	}
+
+	private static boolean isUpToDate(Path target, long size, FileTime modified) throws IOException {
+		if (!Files.isRegularFile(target)) return false;
+		BasicFileAttributes attributes = Files.readAttributes(target, BasicFileAttributes.class);
+		// some file systems store the modification time with a precision of seconds only
+		return attributes.size() == size
+			&& attributes.lastModifiedTime().to(TimeUnit.SECONDS) == modified.to(TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Copies the file through a direct buffer and computes the checksum of its content on the way.
+	 *
+	 * @return CRC-32C checksum of the copied content
+	 */
+	static long copyWithChecksum(Path source, Path target) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer.duplicate());
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+			}
+			out.force(false);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * @return CRC-32C checksum of the content of the file
+	 */
+	static long checksum(Path file) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Result of a copy. The counters are updated concurrently by the copy tasks.
+	 */
+	public static class Result {
+		private final AtomicLong copied = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private final AtomicLong other = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		private long elapsedNanos;
+
+		private void addFailure(Path file, Exception e) {
+			failures.add(file + ": " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+		}
+
+		/**
+		 * @return number of files copied
+		 */
+		public long getCopied() {
+			return copied.get();
+		}
+
+		/**
+		 * @return number of files skipped, as they were up to date
+		 */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		/**
+		 * @return number of symbolic links and other special files, which are not copied
+		 */
+		public long getOther() {
+			return other.get();
+		}
+
+		/**
+		 * @return number of bytes copied
+		 */
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * @return files which could not be copied, with the reason
+		 */
+		public List<String> getFailures() {
+			synchronized (failures) {
+				return new ArrayList<>(failures);
+			}
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files copied (%.1f MB), %d up to date, %d special files ignored, %d failed in %.1f s",
+				getCopied(), getBytes() / 1e6, getSkipped(), getOther(), failures.size(), elapsedNanos / 1e9);
+		}
+	}
+}
@@ -1,9 +1,60 @@
 package ch.zhaw.prog2.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class FileCopy {
+	private static final Set<String> EXPECTED_FILES = Set.of("rmz450.jpg", "rmz450-spec.txt");
+	private static final int DIRECT_BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final long MAPPED_CHUNK_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * Strategies to copy a file.
+	 * BYTES and CHARS copy element by element through streams, as required by the exercise.
+	 * CHARS decodes and encodes the content with the default charset, so binary files (and text files
+	 * in another charset) are not copied exactly.
+	 * The other modes copy the bytes in large blocks without decoding them.
+	 */
+	public enum Mode {
+		/** byte by byte through buffered byte streams */
+		BYTES("byte"),
+		/** char by char through buffered char streams using the default charset */
+		CHARS("char"),
+		/** by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets the
+		 * operating system copy the data without passing it through the Java heap, if supported */
+		TRANSFER("transfer"),
+		/** by writing a memory mapped view of the source file to the target channel */
+		MAPPED("mapped"),
+		/** through a large direct buffer, which the channels can read and write without an intermediate copy */
+		DIRECT_BUFFER("direct");
+
+		private final String suffix;
+
+		Mode(String suffix) {
+			this.suffix = suffix;
+		}
+
+		/**
+		 * @return name of the copy of the given file, e.g. "rmz450-byte.jpg"
+		 */
+		public String copyName(String fileName) {
+			int dot = fileName.lastIndexOf('.');
+			if (dot <= 0) return fileName + "-" + suffix;
+			return fileName.substring(0, dot) + "-" + suffix + fileName.substring(dot);
+		}
+	}
 
 	public static void main(String[] args) throws IOException {
 
@@ -14,7 +65,29 @@ public class FileCopy {
          * Korrekt bedeutet, dass das Verzeichnis existiert und ausser zwei Dateien mit den Namen rmz450.jpg
          * und rmz450-spec.txt nichts weiter enthaelt.
          */
-
+		if (args.length > 0 && args[0].equals("-r")) {
+			// mirror a whole directory tree, see DirectoryCopy
+			DirectoryCopy.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: FileCopy <source-directory> [<target-directory>]");
+			System.out.println("       FileCopy -r <source-directory> <target-directory> [<threads>]");
+			return;
+		}
+		Path source = Paths.get(args[0]);
+		if (!Files.isDirectory(source)) {
+			System.out.println("Source directory does not exist: " + source);
+			return;
+		}
+		Set<String> files;
+		try (Stream<Path> entries = Files.list(source)) {
+			files = entries.map(path -> path.getFileName().toString()).collect(Collectors.toCollection(TreeSet::new));
+		}
+		if (!files.equals(EXPECTED_FILES)) {
+			System.out.println("Source directory has to contain exactly " + EXPECTED_FILES + ", but contains " + files);
+			return;
+		}
 
 		/* Teilaufgabe b - Kopieren von Dateien
 		 * Jede Datei soll zweimal kopiert werden, einmal zeichen-orientiert und einmal byte-orientiert.
@@ -23,8 +96,108 @@ public class FileCopy {
          * Oeffnen Sie die Kopien anschliessend mit einem entsprechenden Programm und erklaeren Sie die entsprechenden Effekte.
          * Oeffnen Sie die Kopien anschliessend mit einem HEX-Editor und erklaeren Sie die Gruende fuer die Effekte.
          */
+		// the copies are not written to the source directory, so it still passes the check of Teilaufgabe a
+		Path target = args.length == 2 ? Paths.get(args[1]) : source.resolveSibling(source.getFileName() + "-copies");
+		Files.createDirectories(target);
+		for (String file : files) {
+			for (Mode mode : Mode.values()) {
+				Path copy = target.resolve(mode.copyName(file));
+				copy(source.resolve(file), copy, mode);
+				System.out.printf("%-20s -> %-28s %10d bytes%n", file, copy.getFileName(), Files.size(copy));
+			}
+		}
+	}
 
+	/**
+	 * Copies a file. An existing target file is overwritten.
+	 *
+	 * @param source file to copy
+	 * @param target file to write
+	 * @param mode   strategy used to copy
+	 * @throws IOException if reading or writing fails
+	 */
+	public static void copy(Path source, Path target, Mode mode) throws IOException {
+		switch (mode) {
+			case BYTES:
+				copyBytes(source, target);
+				break;
+			case CHARS:
+				copyChars(source, target);
+				break;
+			case TRANSFER:
+				copyTransfer(source, target);
+				break;
+			case MAPPED:
+				copyMapped(source, target);
+				break;
+			default:
+				copyDirectBuffer(source, target);
+		}
+	}
 
+	static void copyBytes(Path source, Path target) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+			 OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+			int b;
+			while ((b = in.read()) != -1) {
+				out.write(b);
+			}
+		}
+	}
+
+	static void copyChars(Path source, Path target) throws IOException {
+		try (Reader in = new BufferedReader(new FileReader(source.toFile()));
+			 Writer out = new BufferedWriter(new FileWriter(target.toFile()))) {
+			int c;
+			while ((c = in.read()) != -1) {
+				out.write(c);
+			}
+		}
+	}
+
+	static void copyTransfer(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FileChannel out = openTarget(target)) {
+			long size = in.size();
+			long position = 0;
+			// transferTo may copy less than requested, e.g. at most 2 GB per call on Linux
+			while (position < size) {
+				long transferred = in.transferTo(position, size - position, out);
+				// the source file has been truncated meanwhile
+				if (transferred == 0 && position >= in.size()) break;
+				position += transferred;
+			}
+		}
+	}
+
+	static void copyMapped(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FileChannel out = openTarget(target)) {
+			long size = in.size();
+			// a mapping is limited to 2 GB, large files are mapped chunk by chunk
+			for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+				MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_CHUNK_SIZE, size - position));
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+			}
+		}
+	}
+
+	static void copyDirectBuffer(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FileChannel out = openTarget(target)) {
+			// allocating a direct buffer is expensive, small files get a smaller one
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(in.size(), DIRECT_BUFFER_SIZE)));
+			while (in.read(buffer) != -1 || buffer.position() > 0) {
+				buffer.flip();
+				out.write(buffer);
+				buffer.compact();
+			}
+		}
+	}
 
+	private static FileChannel openTarget(Path target) throws IOException {
+		return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
 	}
 }
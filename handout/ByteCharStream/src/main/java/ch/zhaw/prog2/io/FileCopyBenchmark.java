@@ -0,0 +1,122 @@
+package ch.zhaw.prog2.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares the throughput of the copy modes of {@link FileCopy} for files of different sizes
+ * and verifies that each copy is byte-exact.
+ *
+ * Usage: FileCopyBenchmark [&lt;work-directory&gt;] (default: the temporary directory)
+ *
+ * The source files contain random bytes, like compressed images. Each mode copies each file
+ * {@value #WARMUP_RUNS} times for warm-up and then {@value #MEASURED_RUNS} times, the median throughput is printed.
+ * The source file stays in the page cache, so the results show the cost of the copy itself
+ * rather than the speed of the disk. The element-wise modes are skipped for files larger than
+ * {@value #ELEMENT_WISE_LIMIT} bytes, as they would take too long.
+ * The mode CHARS is expected not to produce exact copies of binary files.
+ */
+public class FileCopyBenchmark {
+	private static final long[] SIZES = {4 * 1024, 1024 * 1024, 32 * 1024 * 1024, 256 * 1024 * 1024};
+	private static final int WARMUP_RUNS = 2;
+	private static final int MEASURED_RUNS = 5;
+	private static final long ELEMENT_WISE_LIMIT = 32 * 1024 * 1024;
+	private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		Path directory = args.length > 0 ? Paths.get(args[0]) : Paths.get(System.getProperty("java.io.tmpdir"));
+		Path work = Files.createTempDirectory(directory, "filecopy-benchmark");
+		boolean allExact = true;
+		try {
+			System.out.printf("%-14s %12s %12s  %s%n", "mode", "size", "MB/s", "copy");
+			for (long size : SIZES) {
+				Path source = work.resolve("source-" + size + ".bin");
+				createRandomFile(source, size);
+				for (FileCopy.Mode mode : FileCopy.Mode.values()) {
+					boolean elementWise = mode == FileCopy.Mode.BYTES || mode == FileCopy.Mode.CHARS;
+					if (elementWise && size > ELEMENT_WISE_LIMIT) {
+						System.out.printf("%-14s %12d %12s  %s%n", mode, size, "-", "skipped");
+						continue;
+					}
+					Path target = work.resolve(mode.copyName(source.getFileName().toString()));
+					double throughput = measure(source, target, mode);
+					boolean exact = sameContent(source, target);
+					if (!exact && mode != FileCopy.Mode.CHARS) allExact = false;
+					System.out.printf("%-14s %12d %12.1f  %s%n", mode, size, throughput, exact ? "exact" : "DIFFERENT");
+					Files.delete(target);
+				}
+				Files.delete(source);
+			}
+		} finally {
+			deleteAll(work);
+		}
+		if (!allExact) {
+			System.out.println("Some copies are not byte-exact");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return median throughput of the measured runs in MB/s
+	 */
+	static double measure(Path source, Path target, FileCopy.Mode mode) throws IOException {
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			FileCopy.copy(source, target, mode);
+		}
+		double[] throughputs = new double[MEASURED_RUNS];
+		long size = Files.size(source);
+		for (int i = 0; i < MEASURED_RUNS; i++) {
+			long start = System.nanoTime();
+			FileCopy.copy(source, target, mode);
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			throughputs[i] = size / 1e6 / (elapsed / 1e9);
+		}
+		Arrays.sort(throughputs);
+		return throughputs[MEASURED_RUNS / 2];
+	}
+
+	/**
+	 * @return true if both files have the same length and the same bytes
+	 */
+	static boolean sameContent(Path first, Path second) throws IOException {
+		if (Files.size(first) != Files.size(second)) return false;
+		byte[] firstBuffer = new byte[COMPARE_BUFFER_SIZE];
+		byte[] secondBuffer = new byte[COMPARE_BUFFER_SIZE];
+		try (InputStream firstIn = Files.newInputStream(first);
+			 InputStream secondIn = Files.newInputStream(second)) {
+			while (true) {
+				int read = firstIn.readNBytes(firstBuffer, 0, COMPARE_BUFFER_SIZE);
+				if (read == 0) return true;
+				if (secondIn.readNBytes(secondBuffer, 0, read) != read) return false;
+				if (!Arrays.equals(firstBuffer, 0, read, secondBuffer, 0, read)) return false;
+			}
+		}
+	}
+
+	private static void createRandomFile(Path file, long size) throws IOException {
+		Random random = new Random(size);
+		byte[] block = new byte[1024 * 1024];
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+	}
+
+	private static void deleteAll(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(directory);
+	}
+}
@@ -1,16 +1,88 @@
 package ch.zhaw.prog2.io;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+/**
+ * Lists the metadata of a file, resp. all of its files if it is a directory.
+ *
+ * The entries are read with {@link Files#newDirectoryStream(Path)} and written while the directory is read,
+ * so the listing is never held in memory. All attributes of an entry are read at once with
+ * {@link Files#readAttributes(Path, String, LinkOption...)}, which needs a single stat call per entry
+ * (java.io.File needs one call per attribute). On Unix file systems the flags are derived from the mode bits,
+ * the owner and the group of the entry like the kernel does: the owner bits apply to the owner, the group bits
+ * to members of the group, the others bits to everyone else, and root may read and write everything.
+ * The user and group ids of the process are read once from /proc/self/status, the ids of the owner are not
+ * looked up in the user database. If the ids are not available (e.g. on macOS), on file systems with access
+ * control lists and on other file systems the flags are checked by {@link Files#isReadable(Path)} etc.,
+ * which needs a system call per flag. The file system is determined by the listed path,
+ * file systems mounted below it are treated alike.
+ *
+ * With the option "-r" the directory tree is listed recursively, the subdirectories are listed in parallel.
+ * Each line then contains the path of the entry, and after the entries of a directory and its subdirectories
+ * a line with the totals of the subtree is written. Symbolic links to directories are listed but not followed.
+ * An entry or a directory which cannot be read is written as an error line and counted, the listing continues.
+ */
 public class DirList {
-    private static final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final String UNIX_ATTRIBUTES = "unix:mode,uid,gid,size,lastModifiedTime,isDirectory,isRegularFile,isSymbolicLink";
+    // permission bits of others, shifted by 3 for the group and by 6 for the owner
+    private static final int READ = 4;
+    private static final int WRITE = 2;
+    private static final int EXECUTE = 1;
+
+    private final Writer out;
+    // null if the flags are checked by Files.isReadable etc.
+    private final Identity identity;
+    private final boolean readOnly;
+
+    DirList(Writer out, Path path) {
+        this.out = out;
+        Identity processIdentity = null;
+        boolean readOnlyStore = false;
+        if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+            try {
+                FileStore store = Files.getFileStore(path);
+                readOnlyStore = store.isReadOnly();
+                if (!store.supportsFileAttributeView(AclFileAttributeView.class)) processIdentity = Identity.current();
+            } catch (IOException e) {
+                // path not found, the flags are checked by Files.isReadable etc.
+            }
+        }
+        this.identity = processIdentity;
+        this.readOnly = readOnlyStore;
+    }
 
     public static void main(String[] args) throws IOException {
-        String pathName = (args.length == 1)? args[0] : ".";
-        File file = new File(pathName);
+        boolean recursive = args.length > 0 && args[0].equals("-r");
+        int pathIndex = recursive ? 1 : 0;
+        String pathName = (args.length == pathIndex + 1)? args[pathIndex] : ".";
+        Path path = Paths.get(pathName);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE);
         // Write metadata of given file, resp. all of its files if it is a directory
         // Whith each file on one line in the following format.
         // - type of file ('d'=directory, 'f'=file)
@@ -21,7 +93,307 @@ public class DirList {
         // - modified date in format 'yyyy-MM-dd HH:mm:ss'
         // - length in bytes
         // - name of the file
+        DirList dirList = new DirList(out, path);
+        if (recursive) {
+            Totals totals = dirList.listRecursive(path);
+            out.write(totals + System.lineSeparator());
+        } else {
+            dirList.list(path);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes one line per entry of the directory, or a line for the file if the path is not a directory.
+     */
+    void list(Path path) throws IOException {
+        StringBuilder line = new StringBuilder();
+        if (!Files.isDirectory(path)) {
+            try {
+                format(line, path, path.getFileName() != null ? path.getFileName().toString() : path.toString());
+            } catch (IOException e) {
+                appendError(line, path, e);
+            }
+            out.write(line.toString());
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+            for (Path entry : entries) {
+                line.setLength(0);
+                try {
+                    format(line, entry, entry.getFileName().toString());
+                } catch (IOException e) {
+                    // e.g. the entry has been deleted since the directory was read
+                    appendError(line, entry, e);
+                }
+                out.write(line.toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            line.setLength(0);
+            appendError(line, path, e.getCause());
+            out.write(line.toString());
+        }
+    }
+
+    /**
+     * Lists the directory tree in parallel, with the totals of each directory.
+     *
+     * @return totals of the whole tree
+     * @throws IOException if the output cannot be written
+     */
+    Totals listRecursive(Path directory) throws IOException {
+        try {
+            return ForkJoinPool.commonPool().invoke(new ListTask(directory));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Appends the line of an entry and reads its attributes with a single stat call,
+     * resp. two for a symbolic link.
+     *
+     * @return attributes of the entry, not following symbolic links
+     */
+    private Stat format(StringBuilder line, Path entry, String name) throws IOException {
+        Stat linkAttributes = readAttributes(entry, LinkOption.NOFOLLOW_LINKS);
+        Stat attributes = linkAttributes;
+        boolean accessible = true;
+        if (linkAttributes.isSymbolicLink()) {
+            try {
+                attributes = readAttributes(entry);
+            } catch (IOException e) {
+                // broken link, the attributes of the link are listed, but it can not be accessed
+                accessible = false;
+            }
+        }
+        line.append(attributes.isDirectory() ? 'd' : 'f');
+        if (identity != null) {
+            line.append(accessible && identity.isPermitted(attributes, READ) ? 'r' : '-');
+            line.append(accessible && !readOnly && identity.isPermitted(attributes, WRITE) ? 'w' : '-');
+            line.append(accessible && identity.isPermitted(attributes, EXECUTE) ? 'x' : '-');
+            Path fileName = entry.getFileName();
+            line.append(fileName != null && fileName.toString().startsWith(".") ? 'h' : '-');
+        } else {
+            line.append(Files.isReadable(entry) ? 'r' : '-');
+            line.append(Files.isWritable(entry) ? 'w' : '-');
+            line.append(Files.isExecutable(entry) ? 'x' : '-');
+            line.append(Files.isHidden(entry) ? 'h' : '-');
+        }
+        line.append(' ');
+        appendDate(line, attributes.modified);
+        line.append(' ').append(attributes.size());
+        line.append(' ').append(name).append(System.lineSeparator());
+        return linkAttributes;
+    }
+
+    private Stat readAttributes(Path entry, LinkOption... options) throws IOException {
+        if (identity != null) {
+            Map<String, Object> attributes = Files.readAttributes(entry, UNIX_ATTRIBUTES, options);
+            return new Stat((Boolean) attributes.get("isDirectory"), (Boolean) attributes.get("isRegularFile"),
+                (Boolean) attributes.get("isSymbolicLink"), (Long) attributes.get("size"),
+                (FileTime) attributes.get("lastModifiedTime"), (Integer) attributes.get("mode"),
+                (Integer) attributes.get("uid"), (Integer) attributes.get("gid"));
+        }
+        BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, options);
+        return new Stat(attributes.isDirectory(), attributes.isRegularFile(), attributes.isSymbolicLink(),
+            attributes.size(), attributes.lastModifiedTime(), 0, -1, -1);
+    }
+
+    private static void appendError(StringBuilder line, Path path, IOException e) {
+        line.append("error ").append(path).append(": ").append(e).append(System.lineSeparator());
+    }
+
+    private static void appendDate(StringBuilder line, FileTime time) {
+        DATE_FORMAT.formatTo(time.toInstant(), line);
+    }
+
+    /**
+     * Lists a directory and forks a task for each subdirectory. The lines are written to the shared
+     * output in blocks, the totals line of the directory after all subdirectories have been listed.
+     * Errors reading the directory or an entry are written and counted, only errors writing the output
+     * abort the listing.
+     */
+    private class ListTask extends RecursiveTask<Totals> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
 
+        private ListTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected Totals compute() {
+            Totals totals = new Totals();
+            List<ListTask> subdirectories = new ArrayList<>();
+            StringBuilder lines = new StringBuilder();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    try {
+                        Stat attributes = format(lines, entry, entry.toString());
+                        if (attributes.isDirectory()) {
+                            totals.directories++;
+                            ListTask task = new ListTask(entry);
+                            task.fork();
+                            subdirectories.add(task);
+                        } else {
+                            totals.files++;
+                            if (attributes.isRegularFile()) totals.bytes += attributes.size();
+                        }
+                    } catch (IOException e) {
+                        failed(lines, entry, e, totals);
+                    }
+                    if (lines.length() >= OUTPUT_BUFFER_SIZE) write(lines);
+                }
+            } catch (IOException e) {
+                failed(lines, directory, e, totals);
+            } catch (DirectoryIteratorException e) {
+                failed(lines, directory, e.getCause(), totals);
+            }
+            write(lines);
+            for (ListTask task : subdirectories) {
+                totals.add(task.join());
+            }
+            lines.append("total ").append(directory).append(": ").append(totals).append(System.lineSeparator());
+            write(lines);
+            return totals;
+        }
+
+        private void failed(StringBuilder lines, Path path, IOException e, Totals totals) {
+            appendError(lines, path, e);
+            totals.errors++;
+        }
+
+        private void write(StringBuilder lines) {
+            try {
+                synchronized (out) {
+                    out.write(lines.toString());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lines.setLength(0);
+        }
+    }
+
+    /**
+     * Attributes of an entry, read with a single stat call. The mode, owner and group are only read
+     * if the flags are derived from them.
+     */
+    private static final class Stat {
+        private final boolean directory;
+        private final boolean regularFile;
+        private final boolean symbolicLink;
+        private final long size;
+        private final FileTime modified;
+        private final int mode;
+        private final int uid;
+        private final int gid;
+
+        private Stat(boolean directory, boolean regularFile, boolean symbolicLink, long size, FileTime modified,
+                     int mode, int uid, int gid) {
+            this.directory = directory;
+            this.regularFile = regularFile;
+            this.symbolicLink = symbolicLink;
+            this.size = size;
+            this.modified = modified;
+            this.mode = mode;
+            this.uid = uid;
+            this.gid = gid;
+        }
+
+        private boolean isDirectory() {
+            return directory;
+        }
+
+        private boolean isRegularFile() {
+            return regularFile;
+        }
+
+        private boolean isSymbolicLink() {
+            return symbolicLink;
+        }
+
+        private long size() {
+            return size;
+        }
     }
 
+    /**
+     * Effective user id and group ids of the process, used to check the permissions of an entry.
+     */
+    private static final class Identity {
+        private final int uid;
+        private final Set<Integer> groups;
+
+        private Identity(int uid, Set<Integer> groups) {
+            this.uid = uid;
+            this.groups = groups;
+        }
+
+        /**
+         * @return the ids of the process, or null if /proc/self/status is not available
+         */
+        private static Identity current() {
+            int uid = -1;
+            Set<Integer> groups = new HashSet<>();
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    String[] fields = line.trim().split("\\s+");
+                    // the ids are unsigned, like the ids of the unix attribute view
+                    if (fields[0].equals("Uid:") && fields.length > 2) {
+                        uid = (int) Long.parseLong(fields[2]);
+                    } else if (fields[0].equals("Gid:") && fields.length > 2) {
+                        groups.add((int) Long.parseLong(fields[2]));
+                    } else if (fields[0].equals("Groups:")) {
+                        for (int i = 1; i < fields.length; i++) {
+                            groups.add((int) Long.parseLong(fields[i]));
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                return null;
+            }
+            return uid != -1 && !groups.isEmpty() ? new Identity(uid, groups) : null;
+        }
+
+        /**
+         * @param permission READ, WRITE or EXECUTE
+         */
+        private boolean isPermitted(Stat attributes, int permission) {
+            int mode = attributes.mode;
+            if (uid == 0) {
+                // root may execute a file if anyone may
+                return permission != EXECUTE || attributes.isDirectory() || (mode & 0111) != 0;
+            }
+            if (uid == attributes.uid) return (mode & (permission << 6)) != 0;
+            if (groups.contains(attributes.gid)) return (mode & (permission << 3)) != 0;
+            return (mode & permission) != 0;
+        }
+    }
+
+    /**
+     * Number of files and directories and the bytes of the regular files in a directory tree,
+     * and the number of entries and directories which could not be read.
+     */
+    static class Totals {
+        private long files;
+        private long directories;
+        private long bytes;
+        private long errors;
+
+        private void add(Totals other) {
+            files += other.files;
+            directories += other.directories;
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+
+        @Override
+        public String toString() {
+            String totals = String.format("%d files, %d directories, %d bytes", files, directories, bytes);
+            return errors == 0 ? totals : totals + ", " + errors + " errors";
+        }
+    }
 }
@@ -0,0 +1,375 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous access to a PictureDatasource. All methods return immediately with a CompletableFuture,
+ * which is completed when the operation has been executed by the underlying datasource.
+ * If the operation fails, the future is completed exceptionally with the exception of the datasource
+ * (e.g. {@link RecordNotFoundException}).
+ *
+ * Reads are executed in parallel by a fixed number of reader threads, so the underlying datasource
+ * has to support concurrent reads (like {@link FilePictureDatasource}).
+ * Writes are queued and executed in the order of submission by a single writer thread.
+ * Consecutive writes of the same kind which are waiting in the queue are coalesced
+ * into one batch (e.g. many inserts into one {@link PictureDatasource#insertAll(Collection)}),
+ * so concurrent writes share the cost of accessing the datafile.
+ * If a batch of updates or deletes fails because a picture does not exist, the writes of the batch
+ * are executed again one by one, so only the futures of the failing writes are completed exceptionally.
+ * This requires the underlying datasource to leave the data unchanged if a batch fails
+ * (see {@link PictureDatasource#hasAtomicBatches()}), as FilePictureDatasource does.
+ * Otherwise updates and deletes are not coalesced, but executed request by request.
+ * An Error thrown by the datasource completes the futures of the operation and is rethrown.
+ * The queued writes are then executed by a new writer thread, or fail if the datasource is being closed.
+ *
+ * A read observes all writes whose futures have been completed before the read was submitted.
+ */
+public class AsyncPictureDatasource implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private enum WriteKind { INSERT, UPDATE, DELETE }
+
+    private final PictureDatasource datasource;
+    private final boolean atomicBatches;
+    private final ExecutorService readers;
+    private final ExecutorService writer;
+    private final Queue<WriteRequest> pendingWrites = new ArrayDeque<>();
+    private boolean writerScheduled = false;
+    private boolean closed = false;
+    private long batchCount = 0;
+
+    /**
+     * Creates the asynchronous datasource with one reader thread per available processor.
+     *
+     * @param datasource datasource to access, closed when this datasource is closed
+     */
+    public AsyncPictureDatasource(PictureDatasource datasource) {
+        this(datasource, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates the asynchronous datasource.
+     *
+     * @param datasource    datasource to access, closed when this datasource is closed
+     * @param readerThreads number of threads executing reads in parallel
+     */
+    public AsyncPictureDatasource(PictureDatasource datasource, int readerThreads) {
+        if(readerThreads <= 0) throw new IllegalArgumentException("Number of reader threads must be positive");
+        this.datasource = datasource;
+        this.atomicBatches = datasource.hasAtomicBatches();
+        readers = Executors.newFixedThreadPool(readerThreads, threadFactory("picturedb-reader-"));
+        writer = Executors.newSingleThreadExecutor(threadFactory("picturedb-writer-"));
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public CompletableFuture<Void> insert(Picture picture) {
+        return write(WriteKind.INSERT, Collections.singletonList(picture));
+    }
+
+    public CompletableFuture<Void> insertAll(Collection<Picture> pictures) {
+        return write(WriteKind.INSERT, pictures);
+    }
+
+    public CompletableFuture<Void> update(Picture picture) {
+        return write(WriteKind.UPDATE, Collections.singletonList(picture));
+    }
+
+    public CompletableFuture<Void> updateAll(Collection<Picture> pictures) {
+        return write(WriteKind.UPDATE, pictures);
+    }
+
+    public CompletableFuture<Void> delete(Picture picture) {
+        return write(WriteKind.DELETE, Collections.singletonList(picture));
+    }
+
+    public CompletableFuture<Void> deleteAll(Collection<Picture> pictures) {
+        return write(WriteKind.DELETE, pictures);
+    }
+
+    public CompletableFuture<Integer> count() {
+        return read(datasource::count);
+    }
+
+    public CompletableFuture<Picture> findById(String id) {
+        return read(() -> datasource.findById(id));
+    }
+
+    public CompletableFuture<Collection<Picture>> findAll() {
+        return read(datasource::findAll);
+    }
+
+    public CompletableFuture<Collection<Picture>> findByPosition(float longitude, float latitude, float deviation) {
+        return read(() -> datasource.findByPosition(longitude, latitude, deviation));
+    }
+
+    public CompletableFuture<List<Picture>> findByDateRange(Date from, Date to) {
+        return read(() -> datasource.findByDateRange(from, to));
+    }
+
+    public CompletableFuture<List<Picture>> findByDateRange(Date from, Date to, int skip, int limit, boolean ascending) {
+        return read(() -> datasource.findByDateRange(from, to, skip, limit, ascending));
+    }
+
+    public CompletableFuture<List<Picture>> findByTitle(String words, boolean matchAll) {
+        return read(() -> datasource.findByTitle(words, matchAll));
+    }
+
+    public CompletableFuture<List<PictureProjection>> query(PictureQuery query) {
+        return read(() -> datasource.query(query));
+    }
+
+    public CompletableFuture<ColumnarPictureStore> findAllColumnar() {
+        return read(datasource::findAllColumnar);
+    }
+
+    /**
+     * @return number of batches executed by the underlying datasource
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Executes the pending writes and reads, then closes the underlying datasource.
+     * Operations submitted afterwards fail with an IllegalStateException.
+     * If the writes are not executed within a minute, the queued writes fail with an IllegalStateException
+     * and only the running batch is awaited.
+     *
+     * @throws IOException if closing the datasource fails, or if operations are still running after the timeout
+     *                     or the wait is interrupted. The underlying datasource is not closed then.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+        }
+        writer.shutdown();
+        readers.shutdown();
+        boolean terminated;
+        try {
+            if(!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.log(Level.WARNING, "Writes not executed within a minute, failing the queued writes");
+                failPendingWrites(new IllegalStateException("Datasource closed before the write was executed"));
+            }
+            terminated = writer.awaitTermination(1, TimeUnit.MINUTES) && readers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failPendingWrites(new IllegalStateException("Datasource closed before the write was executed"));
+            throw new InterruptedIOException("Close interrupted, datasource not closed");
+        }
+        if(!terminated) throw new IOException("Operations still running, datasource not closed");
+        datasource.close();
+    }
+
+    /**
+     * Read executed by a reader thread.
+     */
+    private interface Read<R> {
+        R apply() throws IOException, ParseException, RecordNotFoundException;
+    }
+
+    private <R> CompletableFuture<R> read(Read<R> read) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            readers.execute(() -> {
+                try {
+                    future.complete(read.apply());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                } catch (Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IllegalStateException("Datasource is closed"));
+        }
+        return future;
+    }
+
+    /**
+     * Queues a write and schedules the writer thread, if it is not already running.
+     */
+    private CompletableFuture<Void> write(WriteKind kind, Collection<Picture> pictures) {
+        WriteRequest request = new WriteRequest(kind, new ArrayList<>(pictures));
+        synchronized(this) {
+            if(closed) return CompletableFuture.failedFuture(new IllegalStateException("Datasource is closed"));
+            pendingWrites.add(request);
+            if(!writerScheduled) {
+                writerScheduled = true;
+                writer.execute(this::drainWrites);
+            }
+        }
+        return request.future;
+    }
+
+    /**
+     * Executes the queued writes batch by batch, until the queue is empty.
+     * If an Error is thrown, the remaining writes are executed by a new writer thread.
+     * If the writer has been shut down, they fail with an IllegalStateException caused by the Error.
+     */
+    private void drainWrites() {
+        while(true) {
+            List<WriteRequest> batch;
+            synchronized(this) {
+                if(pendingWrites.isEmpty()) {
+                    writerScheduled = false;
+                    return;
+                }
+                batch = nextBatch();
+            }
+            try {
+                execute(batch);
+            } catch (Error e) {
+                synchronized(this) {
+                    writerScheduled = false;
+                    if(!pendingWrites.isEmpty()) {
+                        try {
+                            writer.execute(this::drainWrites);
+                            writerScheduled = true;
+                        } catch (RejectedExecutionException rejected) {
+                            failPendingWrites(new IllegalStateException("Writer terminated by an error", e));
+                        }
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Completes the futures of all queued writes exceptionally and removes them from the queue.
+     */
+    private synchronized void failPendingWrites(Exception cause) {
+        WriteRequest request;
+        while((request = pendingWrites.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Takes the consecutive writes of the same kind from the queue, up to MAX_BATCH_SIZE pictures.
+     * A batch of updates or deletes ends before a picture which is already contained,
+     * as the writes of a batch are not applied in order. If the batches of the datasource are not atomic,
+     * a batch of updates or deletes contains a single request.
+     */
+    private List<WriteRequest> nextBatch() {
+        List<WriteRequest> batch = new ArrayList<>();
+        WriteKind kind = pendingWrites.peek().kind;
+        Set<String> ids = new HashSet<>();
+        int size = 0;
+        WriteRequest next;
+        while((next = pendingWrites.peek()) != null && next.kind == kind
+            && (batch.isEmpty() || size + next.pictures.size() <= MAX_BATCH_SIZE)) {
+            if(kind != WriteKind.INSERT && (containsAny(ids, next.pictures) || !batch.isEmpty() && !atomicBatches)) break;
+            for(Picture picture : next.pictures) {
+                ids.add(picture.getId());
+            }
+            batch.add(pendingWrites.poll());
+            size += next.pictures.size();
+        }
+        return batch;
+    }
+
+    private static boolean containsAny(Set<String> ids, List<Picture> pictures) {
+        for(Picture picture : pictures) {
+            if(ids.contains(picture.getId())) return true;
+        }
+        return false;
+    }
+
+    private void execute(List<WriteRequest> batch) {
+        WriteKind kind = batch.get(0).kind;
+        List<Picture> pictures = new ArrayList<>();
+        for(WriteRequest request : batch) {
+            pictures.addAll(request.pictures);
+        }
+        try {
+            apply(kind, pictures);
+            for(WriteRequest request : batch) {
+                request.future.complete(null);
+            }
+        } catch (RecordNotFoundException e) {
+            if(batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+            LOGGER.log(Level.FINE, "Batch of {0} writes failed, executing them one by one", batch.size());
+            for(WriteRequest request : batch) {
+                try {
+                    apply(kind, request.pictures);
+                    request.future.complete(null);
+                } catch (Exception failure) {
+                    request.future.completeExceptionally(failure);
+                }
+            }
+        } catch (Exception e) {
+            for(WriteRequest request : batch) {
+                request.future.completeExceptionally(e);
+            }
+        } catch (Error e) {
+            for(WriteRequest request : batch) {
+                request.future.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    private void apply(WriteKind kind, List<Picture> pictures) throws IOException, RecordNotFoundException {
+        synchronized(this) {
+            batchCount++;
+        }
+        switch(kind) {
+            case INSERT:
+                datasource.insertAll(pictures);
+                break;
+            case UPDATE:
+                datasource.updateAll(pictures);
+                break;
+            default:
+                datasource.deleteAll(pictures);
+        }
+    }
+
+    private static class WriteRequest {
+        private final WriteKind kind;
+        private final List<Picture> pictures;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private WriteRequest(WriteKind kind, List<Picture> pictures) {
+            this.kind = kind;
+            this.pictures = pictures;
+        }
+    }
+}
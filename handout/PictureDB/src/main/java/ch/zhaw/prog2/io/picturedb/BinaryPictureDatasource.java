@@ -0,0 +1,302 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements the PictureDatasource Interface storing the data in a compact binary format.
+ * Compared to the CSV format of {@link FilePictureDatasource} no text has to be parsed
+ * for dates and coordinates.
+ *
+ * File layout:
+ * <pre>
+ * file header:   int magic "PICB", short version
+ * record:        int    length of the record in bytes (including this field)
+ *                byte   flags (0 = valid, 1 = deleted)
+ *                long   date in milliseconds since epoch
+ *                float  longitude
+ *                float  latitude
+ *                short  length of id,    id as UTF-8 bytes
+ *                short  length of title, title as UTF-8 bytes
+ *                short  length of url,   url as UTF-8 bytes
+ * </pre>
+ * A deleted record is only flagged, an updated record is overwritten in place if its size did not change,
+ * otherwise the old record is flagged as deleted and the new one appended.
+ * An index (id -> offset) is built when the datasource is opened.
+ * Appends are not logged, so a crash during an append can leave an incomplete record at the end of the file.
+ * Such a record is truncated with a warning when the file is opened.
+ * Use {@link PictureFormatConverter} to convert between the CSV and the binary format.
+ */
+public class BinaryPictureDatasource implements PictureDatasource {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int MAGIC = 0x50494342; // "PICB"
+    private static final short VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 6;
+    private static final int RECORD_HEADER_SIZE = 21;
+    // header and the lengths of the three strings
+    private static final int MIN_RECORD_SIZE = RECORD_HEADER_SIZE + 6;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+    private static final byte VALID = 0;
+    private static final byte DELETED = 1;
+
+    private final File file;
+    private final FileChannel channel;
+    private Map<String, Long> index = new HashMap<>();
+
+    /**
+     * Creates the BinaryPictureDatasource with the given file as datafile.
+     * If the file is empty, the file header is written.
+     *
+     * @param filepath of the file to use as database file.
+     * @throws IOException if accessing the file fails or the file is not a binary picture file
+     */
+    public BinaryPictureDatasource(String filepath) throws IOException {
+        LOGGER.log(Level.CONFIG, "Creating BinaryPictureDatasource.");
+        file = new File(filepath);
+        if(!file.exists()) throw new FileNotFoundException();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION);
+            header.flip();
+            channel.write(header, 0);
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if(header.remaining() < FILE_HEADER_SIZE || header.getInt() != MAGIC || header.getShort() != VERSION) {
+            channel.close();
+            throw new IOException("Not a binary picture file: " + filepath);
+        }
+        buildIndex();
+        LOGGER.log(Level.FINER, "Created BinaryPictureDatasource with {0} records", index.size());
+    }
+
+    @Override
+    public synchronized void insert(Picture picture) throws IOException {
+        LOGGER.log(Level.FINE, "Method insert called");
+        Long previous = index.put(picture.getId(), append(encode(picture)));
+        if(previous != null) markDeleted(previous);
+    }
+
+    @Override
+    public synchronized void update(Picture picture) throws RecordNotFoundException, IOException {
+        LOGGER.log(Level.FINE, "Method update called");
+        Long offset = index.get(picture.getId());
+        if(offset == null) throw new RecordNotFoundException("No picture found.");
+        ByteBuffer record = encode(picture);
+        if(readLength(offset) == record.remaining()) {
+            channel.write(record, offset);
+        } else {
+            markDeleted(offset);
+            index.put(picture.getId(), append(record));
+        }
+    }
+
+    @Override
+    public synchronized void delete(Picture picture) throws RecordNotFoundException, IOException {
+        LOGGER.log(Level.FINE, "Method delete called");
+        Long offset = index.remove(picture.getId());
+        if(offset == null) throw new RecordNotFoundException("No picture found.");
+        markDeleted(offset);
+    }
+
+    @Override
+    public synchronized int count() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized Picture findById(String id) throws IOException, RecordNotFoundException {
+        LOGGER.log(Level.FINE, "Method findById called");
+        Long offset = index.get(id);
+        if(offset == null) throw new RecordNotFoundException("Record not found!");
+        ByteBuffer record = ByteBuffer.allocate(readLength(offset));
+        channel.read(record, offset);
+        record.flip();
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()))) {
+            in.readInt();
+            in.readByte();
+            return readPicture(in);
+        }
+    }
+
+    @Override
+    public synchronized Collection<Picture> findAll() throws IOException {
+        LOGGER.log(Level.FINE, "Method findAll called");
+        Collection<Picture> collection = new ArrayList<>();
+        try(DataInputStream in = openScan()) {
+            long offset = FILE_HEADER_SIZE;
+            long end = channel.size();
+            while(offset < end) {
+                int length = in.readInt();
+                if(in.readByte() == VALID) {
+                    collection.add(readPicture(in));
+                } else {
+                    skip(in, length - 5);
+                }
+                offset += length;
+            }
+        }
+        return collection;
+    }
+
+    @Override
+    public synchronized Collection<Picture> findByPosition(float longitude, float latitude, float deviation) throws IOException {
+        LOGGER.log(Level.FINE, "Method findByPosition called");
+        float latitudeMin = latitude - deviation;
+        float latitudeMax = latitude + deviation;
+        float longitudeMin = longitude - deviation;
+        float longitudeMax = longitude + deviation;
+        Collection<Picture> collection = new ArrayList<>();
+        try(DataInputStream in = openScan()) {
+            long offset = FILE_HEADER_SIZE;
+            long end = channel.size();
+            while(offset < end) {
+                int length = in.readInt();
+                byte flags = in.readByte();
+                long date = in.readLong();
+                float recordLongitude = in.readFloat();
+                float recordLatitude = in.readFloat();
+                if(flags == VALID && recordLatitude > latitudeMin && recordLatitude < latitudeMax
+                    && recordLongitude > longitudeMin && recordLongitude < longitudeMax) {
+                    String id = readString(in);
+                    String title = readString(in);
+                    URL url = new URL(readString(in));
+                    collection.add(new Picture(id, url, new Date(date), title, recordLongitude, recordLatitude));
+                } else {
+                    skip(in, length - RECORD_HEADER_SIZE);
+                }
+                offset += length;
+            }
+        }
+        return collection;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Builds the index by reading all records. An incomplete record at the end of the file
+     * (length field cut off, or length beyond the end of the file) is truncated.
+     */
+    private void buildIndex() throws IOException {
+        Map<String, Long> newIndex = new HashMap<>();
+        long offset = FILE_HEADER_SIZE;
+        long end = channel.size();
+        try(DataInputStream in = openScan()) {
+            while(offset < end) {
+                if(end - offset < MIN_RECORD_SIZE) break;
+                int length = in.readInt();
+                if(length < MIN_RECORD_SIZE || length > end - offset) break;
+                if(in.readByte() == VALID) {
+                    skip(in, RECORD_HEADER_SIZE - 5);
+                    String id = readString(in);
+                    newIndex.put(id, offset);
+                    skip(in, length - RECORD_HEADER_SIZE - 2 - id.getBytes(CHARSET).length);
+                } else {
+                    skip(in, length - 5);
+                }
+                offset += length;
+            }
+        }
+        if(offset < end) {
+            LOGGER.log(Level.WARNING, "Incomplete record at offset {0} of {1} truncated, {2} bytes discarded",
+                new Object[]{offset, file, end - offset});
+            channel.truncate(offset);
+        }
+        index = newIndex;
+    }
+
+    private DataInputStream openScan() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        skip(in, FILE_HEADER_SIZE);
+        return in;
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        long offset = channel.size();
+        while(record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        return offset;
+    }
+
+    private int readLength(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        channel.read(length, offset);
+        return length.getInt(0);
+    }
+
+    private void markDeleted(long offset) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{DELETED}), offset + 4);
+    }
+
+    private static ByteBuffer encode(Picture picture) {
+        byte[] id = toBytes(picture.getId());
+        byte[] title = toBytes(picture.getTitle());
+        byte[] url = toBytes(picture.getUrl().toString());
+        int length = RECORD_HEADER_SIZE + 6 + id.length + title.length + url.length;
+        ByteBuffer record = ByteBuffer.allocate(length)
+            .putInt(length)
+            .put(VALID)
+            .putLong(picture.getDate().getTime())
+            .putFloat(picture.getLongitude())
+            .putFloat(picture.getLatitude())
+            .putShort((short) id.length).put(id)
+            .putShort((short) title.length).put(title)
+            .putShort((short) url.length).put(url);
+        record.flip();
+        return record;
+    }
+
+    private static byte[] toBytes(String value) {
+        byte[] bytes = value.getBytes(CHARSET);
+        if(bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Field exceeds " + MAX_STRING_LENGTH + " bytes: " + value);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the picture fields following the length and flags of a record.
+     */
+    private static Picture readPicture(DataInputStream in) throws IOException {
+        long date = in.readLong();
+        float longitude = in.readFloat();
+        float latitude = in.readFloat();
+        String id = readString(in);
+        String title = readString(in);
+        URL url = new URL(readString(in));
+        return new Picture(id, url, new Date(date), title, longitude, latitude);
+    }
+
+    private static void skip(DataInputStream in, long bytes) throws IOException {
+        while(bytes > 0) {
+            int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if(skipped <= 0) throw new EOFException();
+            bytes -= skipped;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
@@ -0,0 +1,93 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append-only storage for many small byte sequences (e.g. the UTF-8 bytes of Strings) in a few large pages,
+ * so they do not need an object each. A sequence is addressed by a long containing the index of its page
+ * in the upper and its position in the page in the lower 32 bits. Sequences do not span pages;
+ * a sequence larger than the page size gets a page of its own.
+ */
+class ByteArena {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    static final int DEFAULT_PAGE_SIZE = 1 << 20;
+
+    private final int pageSize;
+    private byte[][] pages = new byte[4][];
+    private int pageCount = 0;
+    private int position = 0;
+    private long size = 0;
+
+    ByteArena() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    ByteArena(int pageSize) {
+        if(pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Reserves space for a sequence of the given length.
+     *
+     * @return address of the sequence, to be filled with {@link #write(long, int, byte[], int, int)}
+     */
+    long allocate(int length) {
+        if(pageCount == 0 || position + length > pages[pageCount - 1].length) {
+            if(pageCount == pages.length) pages = Arrays.copyOf(pages, pageCount * 2);
+            pages[pageCount++] = new byte[Math.max(pageSize, length)];
+            position = 0;
+        }
+        long address = (long) (pageCount - 1) << 32 | position;
+        position += length;
+        size += length;
+        return address;
+    }
+
+    /**
+     * Copies bytes into an allocated sequence.
+     *
+     * @param address address of the sequence
+     * @param offset  position in the sequence to write to
+     */
+    void write(long address, int offset, byte[] src, int from, int length) {
+        System.arraycopy(src, from, pages[page(address)], position(address) + offset, length);
+    }
+
+    String string(long address, int length) {
+        return new String(pages[page(address)], position(address), length, CHARSET);
+    }
+
+    boolean contentEquals(long address, int length, byte[] other, int from, int to) {
+        int position = position(address);
+        return Arrays.equals(pages[page(address)], position, position + length, other, from, to);
+    }
+
+    /**
+     * @return number of bytes stored
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return number of bytes allocated by the pages
+     */
+    long capacity() {
+        long capacity = 0;
+        for(int i = 0; i < pageCount; i++) {
+            capacity += pages[i].length;
+        }
+        return capacity;
+    }
+
+    private static int page(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int position(long address) {
+        return (int) address;
+    }
+}
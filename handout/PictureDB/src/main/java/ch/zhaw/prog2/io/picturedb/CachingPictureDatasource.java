@@ -0,0 +1,299 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Decorator of a PictureDatasource which caches the pictures returned by {@link #findById(String)}.
+ * The cache is bounded by the number of entries and optionally by the estimated memory size of the cached pictures.
+ * If a bound is exceeded, the least recently used pictures are evicted.
+ *
+ * All modifications are forwarded to the underlying datasource and remove the modified pictures from the cache.
+ * The other queries are not cached and forwarded directly.
+ * The cache holds copies of the pictures and returns copies, as the date of a picture is mutable:
+ * a caller modifying the date of a returned picture does not modify the cached one.
+ * The datasource can be used by several threads, if the underlying datasource can.
+ */
+public class CachingPictureDatasource implements PictureDatasource {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+
+    private final PictureDatasource datasource;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Picture> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    // incremented by each modification, a picture read before a modification is not added to the cache
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a cache bounded by the number of entries.
+     *
+     * @param datasource datasource to cache
+     * @param maxEntries maximal number of cached pictures
+     */
+    public CachingPictureDatasource(PictureDatasource datasource, int maxEntries) {
+        this(datasource, maxEntries, 0);
+    }
+
+    /**
+     * Creates a cache bounded by the number of entries and the estimated memory size of the cached pictures
+     * (see {@link #estimateSize(Picture)}).
+     *
+     * @param datasource datasource to cache
+     * @param maxEntries maximal number of cached pictures
+     * @param maxBytes   maximal estimated size of all cached pictures in bytes, 0 for no limit
+     */
+    public CachingPictureDatasource(PictureDatasource datasource, int maxEntries, long maxBytes) {
+        if(maxEntries <= 0) throw new IllegalArgumentException("Maximal number of entries must be positive");
+        if(maxBytes < 0) throw new IllegalArgumentException("Maximal size must not be negative");
+        this.datasource = datasource;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void insert(Picture picture) throws IOException {
+        try {
+            datasource.insert(picture);
+        } finally {
+            invalidate(picture);
+        }
+    }
+
+    @Override
+    public void insertAll(Collection<Picture> pictures) throws IOException {
+        try {
+            datasource.insertAll(pictures);
+        } finally {
+            invalidateAll(pictures);
+        }
+    }
+
+    @Override
+    public void update(Picture picture) throws RecordNotFoundException, IOException {
+        try {
+            datasource.update(picture);
+        } finally {
+            invalidate(picture);
+        }
+    }
+
+    @Override
+    public void updateAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        try {
+            datasource.updateAll(pictures);
+        } finally {
+            invalidateAll(pictures);
+        }
+    }
+
+    @Override
+    public void delete(Picture picture) throws RecordNotFoundException, IOException {
+        try {
+            datasource.delete(picture);
+        } finally {
+            invalidate(picture);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        try {
+            datasource.deleteAll(pictures);
+        } finally {
+            invalidateAll(pictures);
+        }
+    }
+
+    @Override
+    public boolean hasAtomicBatches() {
+        return datasource.hasAtomicBatches();
+    }
+
+    @Override
+    public int count() throws IOException {
+        return datasource.count();
+    }
+
+    @Override
+    public Picture findById(String id) throws IOException, ParseException, RecordNotFoundException {
+        long readGeneration;
+        synchronized(this) {
+            Picture picture = cache.get(id);
+            if(picture != null) {
+                hits++;
+                return copy(picture);
+            }
+            misses++;
+            readGeneration = generation;
+        }
+        Picture picture = datasource.findById(id);
+        synchronized(this) {
+            if(generation == readGeneration && !cache.containsKey(id)) {
+                cache.put(id, copy(picture));
+                bytes += estimateSize(picture);
+                evict();
+            }
+        }
+        return picture;
+    }
+
+    @Override
+    public Collection<Picture> findAll() throws IOException, ParseException {
+        return datasource.findAll();
+    }
+
+    @Override
+    public Stream<Picture> streamAll() throws IOException, ParseException {
+        return datasource.streamAll();
+    }
+
+    @Override
+    public Collection<Picture> findByPosition(float longitude, float latitude, float deviation) throws IOException, ParseException {
+        return datasource.findByPosition(longitude, latitude, deviation);
+    }
+
+    @Override
+    public List<Picture> findByDateRange(Date from, Date to, int skip, int limit, boolean ascending) throws IOException, ParseException {
+        return datasource.findByDateRange(from, to, skip, limit, ascending);
+    }
+
+    @Override
+    public List<Picture> findByTitle(String words, boolean matchAll) throws IOException, ParseException {
+        return datasource.findByTitle(words, matchAll);
+    }
+
+    @Override
+    public List<PictureProjection> query(PictureQuery query) throws IOException, ParseException {
+        return datasource.query(query);
+    }
+
+    @Override
+    public ColumnarPictureStore findAllColumnar() throws IOException, ParseException {
+        return datasource.findAllColumnar();
+    }
+
+    /**
+     * Clears the cache and closes the underlying datasource.
+     */
+    @Override
+    public void close() throws IOException {
+        clear();
+        datasource.close();
+    }
+
+    /**
+     * @return copy of the picture with its own date, the other fields are immutable
+     */
+    private static Picture copy(Picture picture) {
+        Date date = picture.getDate() != null ? new Date(picture.getDate().getTime()) : null;
+        return new Picture(picture.getId(), picture.getUrl(), date, picture.getTitle(),
+            picture.getLongitude(), picture.getLatitude());
+    }
+
+    /**
+     * Removes all pictures from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    /**
+     * @return number of findById calls answered from the cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of findById calls forwarded to the underlying datasource
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return number of pictures removed from the cache because a bound was exceeded
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return number of cached pictures
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return estimated memory size of the cached pictures in bytes
+     */
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    private synchronized void invalidate(Picture picture) {
+        generation++;
+        Picture removed = cache.remove(picture.getId());
+        if(removed != null) bytes -= estimateSize(removed);
+    }
+
+    private synchronized void invalidateAll(Collection<Picture> pictures) {
+        for(Picture picture : pictures) {
+            invalidate(picture);
+        }
+    }
+
+    /**
+     * Removes the least recently used pictures until both bounds are met.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Picture>> iterator = cache.entrySet().iterator();
+        while(iterator.hasNext() && (cache.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes))) {
+            Picture evicted = iterator.next().getValue();
+            iterator.remove();
+            bytes -= estimateSize(evicted);
+            evictions++;
+        }
+        if(LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.log(Level.FINEST, "Cache contains {0} pictures with {1} bytes", new Object[]{cache.size(), bytes});
+        }
+    }
+
+    /**
+     * Estimates the memory size of a picture including its id, title, date and url,
+     * assuming compressed object pointers and strings with one byte per character.
+     *
+     * @param picture picture to estimate
+     * @return estimated size in bytes
+     */
+    static long estimateSize(Picture picture) {
+        // Picture, Date, URL with its strings and the cache entry
+        long size = 32 + 24 + 80 + 40;
+        size += stringSize(picture.getId());
+        size += stringSize(picture.getTitle());
+        size += 2 * stringSize(picture.getUrl().toString());
+        return size;
+    }
+
+    private static long stringSize(String value) {
+        // String object and byte array with header
+        return value == null ? 0 : 24 + 16 + ((value.length() + 7) & ~7);
+    }
+}
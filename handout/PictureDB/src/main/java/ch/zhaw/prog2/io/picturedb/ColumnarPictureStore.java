@@ -0,0 +1,347 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores pictures column by column in primitive arrays (struct of arrays) instead of one object graph per picture.
+ * A {@link Picture} consists of about a dozen objects (the id String, URL, Date, title String and their arrays),
+ * here a picture needs 56 bytes in the columns plus the UTF-8 bytes of its title and url:
+ * <ul>
+ *     <li>ids in the canonical UUID format are stored as two longs, other ids in the byte arena</li>
+ *     <li>dates as milliseconds in a long[], coordinates in two float[]</li>
+ *     <li>titles and urls as UTF-8 bytes in a shared {@link ByteArena}, a url equal to the url
+ *     of the previously added picture is stored only once</li>
+ * </ul>
+ * The pictures are accessed by their position through {@link PictureView}s, which read the columns
+ * and create objects (e.g. the title String) only when a getter is called.
+ *
+ * The store is append-only and not thread safe. Views may be read concurrently once all pictures have been added.
+ */
+public class ColumnarPictureStore {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int UUID_LENGTH = 36;
+
+    private int size = 0;
+    // the UUID of the id, or the address and length of the id in the arena if textIds is set
+    private long[] idHigh;
+    private long[] idLow;
+    private final BitSet textIds = new BitSet();
+    private long[] dates;
+    private float[] longitudes;
+    private float[] latitudes;
+    private long[] titleAddresses;
+    private int[] titleLengths;
+    private long[] urlAddresses;
+    private int[] urlLengths;
+    private final ByteArena arena;
+
+    public ColumnarPictureStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity number of pictures which can be added before the columns have to grow
+     */
+    public ColumnarPictureStore(int initialCapacity) {
+        this(initialCapacity, new ByteArena());
+    }
+
+    /**
+     * Creates a store containing the given pictures.
+     */
+    public ColumnarPictureStore(Collection<Picture> pictures) {
+        this(Math.max(1, pictures.size()));
+        addAll(pictures);
+    }
+
+    ColumnarPictureStore(int initialCapacity, ByteArena arena) {
+        if(initialCapacity <= 0) throw new IllegalArgumentException("Initial capacity must be positive");
+        this.arena = arena;
+        idHigh = new long[initialCapacity];
+        idLow = new long[initialCapacity];
+        dates = new long[initialCapacity];
+        longitudes = new float[initialCapacity];
+        latitudes = new float[initialCapacity];
+        titleAddresses = new long[initialCapacity];
+        titleLengths = new int[initialCapacity];
+        urlAddresses = new long[initialCapacity];
+        urlLengths = new int[initialCapacity];
+    }
+
+    /**
+     * Adds a picture.
+     *
+     * @return position of the picture in the store
+     */
+    public int add(Picture picture) {
+        byte[] id = picture.getId().getBytes(CHARSET);
+        byte[] title = picture.getTitle().getBytes(CHARSET);
+        byte[] url = picture.getUrl().toString().getBytes(CHARSET);
+        return add(id, 0, id.length, picture.getDate().getTime(), picture.getLongitude(), picture.getLatitude(),
+            title, 0, title.length, url, 0, url.length);
+    }
+
+    public void addAll(Collection<Picture> pictures) {
+        ensureCapacity(size + pictures.size());
+        for(Picture picture : pictures) {
+            add(picture);
+        }
+    }
+
+    /**
+     * Adds the record of a line of a datafile, without creating the objects of a Picture.
+     * The url is not validated.
+     *
+     * @return position of the picture in the store
+     * @throws ParseException if the line is not a valid record
+     */
+    int add(PictureRecordParser parser, byte[] line, int length) throws ParseException {
+        parser.split(line, length);
+        return add(line, parser.start(0), parser.end(0),
+            parser.parseDateMillis(line, parser.start(1), parser.end(1)),
+            parser.parseFloat(line, parser.start(2), parser.end(2)),
+            parser.parseFloat(line, parser.start(3), parser.end(3)),
+            line, parser.start(4), parser.end(4),
+            line, parser.start(5), parser.end(5));
+    }
+
+    private int add(byte[] id, int idFrom, int idTo, long date, float longitude, float latitude,
+                    byte[] title, int titleFrom, int titleTo, byte[] url, int urlFrom, int urlTo) {
+        ensureCapacity(size + 1);
+        int index = size;
+        if(!parseUuid(id, idFrom, idTo, index)) {
+            idHigh[index] = store(id, idFrom, idTo);
+            idLow[index] = idTo - idFrom;
+            textIds.set(index);
+        }
+        dates[index] = date;
+        longitudes[index] = longitude;
+        latitudes[index] = latitude;
+        titleAddresses[index] = store(title, titleFrom, titleTo);
+        titleLengths[index] = titleTo - titleFrom;
+        if(index > 0 && arena.contentEquals(urlAddresses[index - 1], urlLengths[index - 1], url, urlFrom, urlTo)) {
+            urlAddresses[index] = urlAddresses[index - 1];
+        } else {
+            urlAddresses[index] = store(url, urlFrom, urlTo);
+        }
+        urlLengths[index] = urlTo - urlFrom;
+        return size++;
+    }
+
+    private long store(byte[] bytes, int from, int to) {
+        long address = arena.allocate(to - from);
+        arena.write(address, 0, bytes, from, to - from);
+        return address;
+    }
+
+    /**
+     * Parses an id in the canonical (lower case) UUID format into the id columns,
+     * so that {@link UUID#toString()} returns the same id.
+     *
+     * @return false if the id is not in the canonical format
+     */
+    private boolean parseUuid(byte[] id, int from, int to, int index) {
+        if(to - from != UUID_LENGTH) return false;
+        long high = 0;
+        long low = 0;
+        for(int i = 0; i < UUID_LENGTH; i++) {
+            byte b = id[from + i];
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(b != '-') return false;
+                continue;
+            }
+            int digit = Character.digit(b, 16);
+            if(digit < 0 || Character.isUpperCase(b)) return false;
+            if(i < 18) {
+                high = high << 4 | digit;
+            } else {
+                low = low << 4 | digit;
+            }
+        }
+        idHigh[index] = high;
+        idLow[index] = low;
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity <= dates.length) return;
+        int newCapacity = Math.max(capacity, dates.length + (dates.length >> 1));
+        idHigh = Arrays.copyOf(idHigh, newCapacity);
+        idLow = Arrays.copyOf(idLow, newCapacity);
+        dates = Arrays.copyOf(dates, newCapacity);
+        longitudes = Arrays.copyOf(longitudes, newCapacity);
+        latitudes = Arrays.copyOf(latitudes, newCapacity);
+        titleAddresses = Arrays.copyOf(titleAddresses, newCapacity);
+        titleLengths = Arrays.copyOf(titleLengths, newCapacity);
+        urlAddresses = Arrays.copyOf(urlAddresses, newCapacity);
+        urlLengths = Arrays.copyOf(urlLengths, newCapacity);
+    }
+
+    /**
+     * @return number of pictures in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a view of the picture at the given position
+     */
+    public PictureView get(int index) {
+        checkIndex(index);
+        return new PictureView(index);
+    }
+
+    /**
+     * Calls the action for all pictures in the order they have been added.
+     * A single view is moved from picture to picture, so it must not be kept by the action.
+     */
+    public void forEach(Consumer<PictureView> action) {
+        PictureView view = new PictureView(0);
+        for(int i = 0; i < size; i++) {
+            view.index = i;
+            action.accept(view);
+        }
+    }
+
+    public String getId(int index) {
+        checkIndex(index);
+        if(textIds.get(index)) return arena.string(idHigh[index], (int) idLow[index]);
+        return new UUID(idHigh[index], idLow[index]).toString();
+    }
+
+    public long getDateMillis(int index) {
+        checkIndex(index);
+        return dates[index];
+    }
+
+    public float getLongitude(int index) {
+        checkIndex(index);
+        return longitudes[index];
+    }
+
+    public float getLatitude(int index) {
+        checkIndex(index);
+        return latitudes[index];
+    }
+
+    public String getTitle(int index) {
+        checkIndex(index);
+        return arena.string(titleAddresses[index], titleLengths[index]);
+    }
+
+    public String getUrlString(int index) {
+        checkIndex(index);
+        return arena.string(urlAddresses[index], urlLengths[index]);
+    }
+
+    /**
+     * @return a new Picture with the values of the picture at the given position
+     * @throws IllegalStateException if the url of the picture is not valid
+     */
+    public Picture toPicture(int index) {
+        return new Picture(getId(index), url(index), new Date(getDateMillis(index)), getTitle(index),
+            getLongitude(index), getLatitude(index));
+    }
+
+    private URL url(int index) {
+        try {
+            return new URL(getUrlString(index));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("Invalid url of picture " + getId(index), e);
+        }
+    }
+
+    /**
+     * @return estimated number of bytes used by the columns and the arena
+     */
+    public long getMemoryUsage() {
+        long perPicture = 5L * Long.BYTES + 2 * Float.BYTES + 2 * Integer.BYTES;
+        return (long) dates.length * perPicture + textIds.size() / 8 + arena.capacity();
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+    }
+
+    /**
+     * Flyweight view of a picture in the store, with the getters of {@link Picture}.
+     * The values are read from the columns on each call.
+     */
+    public class PictureView {
+        private int index;
+
+        private PictureView(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return position of the picture in the store
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return ColumnarPictureStore.this.getId(index);
+        }
+
+        /**
+         * @throws IllegalStateException if the url is not valid
+         */
+        public URL getUrl() {
+            return url(index);
+        }
+
+        public String getUrlString() {
+            return ColumnarPictureStore.this.getUrlString(index);
+        }
+
+        public Date getDate() {
+            return new Date(dates[index]);
+        }
+
+        public long getDateMillis() {
+            return dates[index];
+        }
+
+        public String getTitle() {
+            return ColumnarPictureStore.this.getTitle(index);
+        }
+
+        public float getLongitude() {
+            return longitudes[index];
+        }
+
+        public float getLatitude() {
+            return latitudes[index];
+        }
+
+        public Picture toPicture() {
+            return ColumnarPictureStore.this.toPicture(index);
+        }
+
+        @Override
+        public String toString() {
+            return "PictureView{" +
+                "id=" + getId() +
+                ", url=" + getUrlString() +
+                ", date=" + getDate() +
+                ", title='" + getTitle() + '\'' +
+                ", longitude=" + getLongitude() +
+                ", latitude=" + getLatitude() +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Metrics of a datasource: latency histograms per operation, bytes read and written,
+ * rows scanned and returned by the queries and the number of rewrites and compactions of the datafile.
+ *
+ * The metrics can be registered as MBeans at the platform MBean server, e.g. to watch them with JConsole.
+ * The counters are registered as "ch.zhaw.prog2.io.picturedb:type=&lt;type&gt;,name=&lt;name&gt;,instance=&lt;n&gt;",
+ * each histogram with the additional key "operation".
+ * All counters are lock free, so recording has only a small overhead on the measured operations.
+ */
+public class DatasourceMetrics implements DatasourceMetricsMBean {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /**
+     * Operations whose latency is measured.
+     */
+    public enum Operation {
+        INSERT, UPDATE, DELETE, COUNT, FIND_BY_ID, FIND_ALL, FIND_BY_POSITION, FIND_BY_DATE_RANGE, FIND_BY_TITLE, QUERY, COMPACT
+    }
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder rewrites = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+
+    public DatasourceMetrics() {
+        for(Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the latency of an operation.
+     *
+     * @param operation  measured operation
+     * @param startNanos value of {@link System#nanoTime()} at the start of the operation
+     */
+    void record(Operation operation, long startNanos) {
+        latencies.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the rows read by a query and the rows of its result.
+     */
+    void recordScan(long rows, long bytes, long returned) {
+        rowsScanned.add(rows);
+        bytesRead.add(bytes);
+        rowsReturned.add(returned);
+    }
+
+    void recordWrite(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void recordRewrite(long bytes) {
+        rewrites.increment();
+        bytesWritten.add(bytes);
+    }
+
+    void recordCompaction(long bytes) {
+        compactions.increment();
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @return latency histogram of the operation
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getRowsScanned() {
+        return rowsScanned.sum();
+    }
+
+    @Override
+    public long getRowsReturned() {
+        return rowsReturned.sum();
+    }
+
+    @Override
+    public long getRewriteCount() {
+        return rewrites.sum();
+    }
+
+    @Override
+    public long getCompactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * Resets the counters and all latency histograms.
+     */
+    @Override
+    public void reset() {
+        bytesRead.reset();
+        bytesWritten.reset();
+        rowsScanned.reset();
+        rowsReturned.reset();
+        rewrites.reset();
+        compactions.reset();
+        for(LatencyHistogram histogram : latencies.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers the counters and histograms at the platform MBean server.
+     * If the registration fails, the metrics are still recorded.
+     *
+     * @param type type of the datasource, e.g. the simple name of its class
+     * @param name name of the datasource, e.g. the path of its datafile
+     */
+    public synchronized void register(String type, String name) {
+        if(!registeredNames.isEmpty()) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = getClass().getPackageName() + ":type=" + type + ",name=" + ObjectName.quote(name)
+            + ",instance=" + INSTANCES.incrementAndGet();
+        try {
+            ObjectName counters = new ObjectName(base);
+            server.registerMBean(this, counters);
+            registeredNames.add(counters);
+            for(Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+                ObjectName histogram = new ObjectName(base + ",operation=" + entry.getKey().name().toLowerCase(Locale.ROOT));
+                server.registerMBean(entry.getValue(), histogram);
+                registeredNames.add(histogram);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Metrics could not be registered", e);
+        }
+    }
+
+    /**
+     * Removes the MBeans registered by {@link #register(String, String)}.
+     */
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Metrics already unregistered", e);
+            }
+        }
+        registeredNames.clear();
+    }
+}
@@ -0,0 +1,20 @@
+package ch.zhaw.prog2.io.picturedb;
+
+/**
+ * JMX view of the {@link DatasourceMetrics} of a datasource.
+ */
+public interface DatasourceMetricsMBean {
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getRowsScanned();
+
+    long getRowsReturned();
+
+    long getRewriteCount();
+
+    long getCompactionCount();
+
+    void reset();
+}
@@ -0,0 +1,167 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Index over the date of the records, sorted by date.
+ * It holds the date (milliseconds since 1970-01-01 00:00:00 UTC) and the byte offset of each record
+ * in two parallel arrays, sorted by date and, for equal dates, by offset (i.e. the order of the datafile).
+ * A date range is found by binary search, the records in the range can be read in ascending or descending order.
+ *
+ * Added records are appended at the end of the arrays. Before the next query the arrays have to be sorted again
+ * by {@link #sort()}, which only has to merge the appended records, as already sorted parts are not merged again.
+ *
+ * Like {@link GridIndex}, the index can be stored in a sidecar file next to the datafile,
+ * which contains the length and modification time of the datafile it was built from.
+ */
+class DateIndex {
+    private static final int MAGIC = 0x44415445; // "DATE"
+
+    private long[] dates = new long[16];
+    private long[] offsets = new long[16];
+    private int size = 0;
+    private boolean sorted = true;
+
+    /**
+     * Adds a record to the index.
+     *
+     * @param date   date of the record in milliseconds
+     * @param offset byte offset of the record in the datafile
+     */
+    void add(long date, long offset) {
+        if (size == dates.length) {
+            dates = Arrays.copyOf(dates, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        if (size > 0 && compare(size - 1, date, offset) > 0) sorted = false;
+        dates[size] = date;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /**
+     * @return position of the first record with a date not before the given date, the index has to be sorted
+     */
+    int lowerBound(long date) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dates[middle] < date) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return byte offset of the record at the given position in date order, the index has to be sorted
+     */
+    long offset(int position) {
+        return offsets[position];
+    }
+
+    /**
+     * @return number of indexed records
+     */
+    int size() {
+        return size;
+    }
+
+    private int compare(int position, long date, long offset) {
+        int result = Long.compare(dates[position], date);
+        return result != 0 ? result : Long.compare(offsets[position], offset);
+    }
+
+    /**
+     * @return true if no records have been added out of order since the last sort
+     */
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Sorts the records added out of order into place.
+     */
+    void sort() {
+        if (sorted) return;
+        long[] dateBuffer = new long[size];
+        long[] offsetBuffer = new long[size];
+        mergeSort(0, size, dateBuffer, offsetBuffer);
+        sorted = true;
+    }
+
+    /**
+     * Sorts the range [from, to). Two sorted halves which are already in order are not merged.
+     */
+    private void mergeSort(int from, int to, long[] dateBuffer, long[] offsetBuffer) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle, dateBuffer, offsetBuffer);
+        mergeSort(middle, to, dateBuffer, offsetBuffer);
+        if (compare(middle - 1, dates[middle], offsets[middle]) <= 0) return;
+        System.arraycopy(dates, from, dateBuffer, from, to - from);
+        System.arraycopy(offsets, from, offsetBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            boolean takeLeft = right >= to || (left < middle && (dateBuffer[left] < dateBuffer[right]
+                || (dateBuffer[left] == dateBuffer[right] && offsetBuffer[left] <= offsetBuffer[right])));
+            int source = takeLeft ? left++ : right++;
+            dates[i] = dateBuffer[source];
+            offsets[i] = offsetBuffer[source];
+        }
+    }
+
+    /**
+     * Writes the index to the given sidecar file.
+     *
+     * @param sidecar      file to write the index to
+     * @param dataLength   length of the datafile the index belongs to
+     * @param dataModified modification time of the datafile the index belongs to
+     */
+    void save(File sidecar, long dataLength, long dataModified) throws IOException {
+        sort();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(dataLength);
+            out.writeLong(dataModified);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(dates[i]);
+                out.writeLong(offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Loads the index from the given sidecar file.
+     *
+     * @return the index or null if the sidecar does not exist or does not match the datafile
+     */
+    static DateIndex load(File sidecar, long dataLength, long dataModified) throws IOException {
+        if (!sidecar.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readLong() != dataLength || in.readLong() != dataModified) {
+                return null;
+            }
+            int count = in.readInt();
+            DateIndex index = new DateIndex();
+            index.dates = new long[Math.max(count, 16)];
+            index.offsets = new long[index.dates.length];
+            for (int i = 0; i < count; i++) {
+                index.dates[i] = in.readLong();
+                index.offsets[i] = in.readLong();
+            }
+            index.size = count;
+            return index;
+        }
+    }
+}
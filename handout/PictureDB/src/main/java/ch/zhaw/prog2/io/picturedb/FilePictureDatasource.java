@@ -1,220 +1,1450 @@
 package ch.zhaw.prog2.io.picturedb;
 
+import ch.zhaw.prog2.io.picturedb.DatasourceMetrics.Operation;
+
 import java.io.*;
-import java.net.URL;
+import java.net.MalformedURLException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Implements the PictureDatasource Interface storing the data in
  * Character Separated Values (CSV) format, where each line consists of a record
  * whose fields are separated by the DELIMITER ";"
  * See example file: db/picture-data.csv
+ *
+ * To avoid scanning the whole file on each lookup, an in-memory index (id -> byte offset of the record)
+ * is built on first use and kept up to date by insert, update and delete.
+ * The number of records is maintained by the modifications and stored in the sidecar file
+ * "&lt;datafile&gt;.meta" when the datasource is closed, so {@link #count()} does not have to read the datafile.
+ * If the datafile has been modified since, the records are counted again.
+ * Queries by position use a spatial grid index ({@link GridIndex}), which is stored
+ * in the sidecar file "&lt;datafile&gt;.grid" when the datasource is closed.
+ * Queries by date use an index sorted by date ({@link DateIndex}), stored in the sidecar file "&lt;datafile&gt;.dates".
+ * Searches by title words use an inverted index ({@link TitleIndex}), stored in the sidecar file "&lt;datafile&gt;.titles".
+ *
+ * The datafile can be maintained in two storage modes (see {@link StorageMode}):
+ * In REWRITE mode update and delete rewrite the whole file.
+ * In LOG_STRUCTURED mode the file is an append-only log: updates append a new version of the record,
+ * deletes append a tombstone ("id; &lt;deleted&gt;"). The last version of a record is the valid one.
+ * A background compaction rewrites the file with only the valid records,
+ * as soon as the ratio of outdated lines exceeds the compaction threshold.
+ *
+ * Full scans (findAll, count and building the indexes) either read the file through a buffered stream
+ * or from a memory mapped view of the file, optionally split into ranges which are scanned
+ * in parallel (see {@link ReadMode}).
+ * {@link #streamAll()} reads the records lazily while the stream is consumed.
+ *
+ * Appends are logged in a write-ahead log ("&lt;datafile&gt;.wal", see {@link WriteAheadLog}) before
+ * they are written to the datafile. A modification returns as soon as its log entry is forced to disk,
+ * concurrent modifications share one force (group commit). If the datasource has not been closed properly,
+ * the datafile is recovered from the log when it is opened again. Rewrites of the datafile are written to a
+ * temporary file, which is forced to disk and then atomically moved over the datafile.
+ * A log which does not belong to the datafile (e.g. because the datafile has been replaced) is not replayed.
+ *
+ * The datasource can be used by several threads concurrently.
+ * Read operations share a read lock and do not block each other,
+ * modifications and compactions are executed exclusively using the write lock.
+ *
+ * The latencies of the operations, the bytes read and written and the rows scanned and returned
+ * are recorded in {@link DatasourceMetrics}, which can be registered as MBeans (see {@link #registerMBeans()}).
  */
 public class FilePictureDatasource implements PictureDatasource {
     private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName()); //log.properties werden in der mainklasse initialisiert
 
     private static final String DELIMITER = "; ";
     private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+    // SimpleDateFormat is not thread safe, each thread (e.g. of a parallel scan) uses its own instance
+    private static final ThreadLocal<DateFormat> DF = ThreadLocal.withInitial(() -> new SimpleDateFormat(DATE_FORMAT));
+    private static final ThreadLocal<PictureRecordParser> PARSER = ThreadLocal.withInitial(PictureRecordParser::new);
     private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final String TOMBSTONE = "<deleted>";
+    private static final byte[] TOMBSTONE_SUFFIX = (DELIMITER + TOMBSTONE).getBytes(CHARSET);
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final long DEFAULT_COMMIT_INTERVAL = 2;
+    private static final long WAL_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+    private static final int META_MAGIC = 0x504D4554; // "PMET"
+    // a mapped file can not be replaced on Windows, see ReadMode
+    private static final boolean MAPPING_LOCKS_FILE = System.getProperty("os.name", "").startsWith("Windows");
+    private static final String[] SIDECAR_SUFFIXES = {".grid", ".dates", ".titles", ".wal", ".wal.rejected", ".meta"};
+
+    /**
+     * Defines how modifications are written to the datafile.
+     */
+    public enum StorageMode {
+        /** update and delete rewrite the whole datafile */
+        REWRITE,
+        /** update and delete are appended as new version or tombstone, the file is compacted in background */
+        LOG_STRUCTURED
+    }
+
+    /**
+     * Indexes required by a read operation, see {@link #readLock(Required...)}.
+     */
+    private enum Required {
+        /** the index of the ids */
+        ID,
+        /** the index of the ids, if it is needed to check which records are valid (storage mode LOG_STRUCTURED) */
+        LIVE,
+        /** the grid index */
+        GRID,
+        /** the date index, sorted */
+        DATES,
+        /** the title index */
+        TITLES
+    }
+
+    /**
+     * Defines how full scans read the datafile.
+     * A memory mapped file is only unmapped when the mapping is garbage collected, and on Windows a file can not be
+     * replaced while it is mapped. As rewrites and compactions replace the datafile, full scans on Windows always
+     * read through a buffered stream.
+     */
+    public enum ReadMode {
+        /** read through a buffered input stream */
+        BUFFERED,
+        /** read from the memory mapped datafile, decoding only the required fields */
+        MAPPED,
+        /** like MAPPED, but findAll and count split the file into ranges which are scanned in parallel */
+        PARALLEL
+    }
 
+    private final StorageMode storageMode;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile ReadMode readMode = ReadMode.BUFFERED;
+    private volatile ForkJoinPool scanPool = ForkJoinPool.commonPool();
     private File file;
-    private File tempFile;
+    // built on first use, see readLock(Required...)
+    private Map<String, Long> index;
+    private long recordLines = 0;
+    // number of records returned by count(), -1 if unknown. In storage mode LOG_STRUCTURED the size of the index
+    private long recordCount = -1;
+    private File metaFile;
+    private volatile double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private ExecutorService compactor;
+    private boolean compactionScheduled = false;
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private File gridFile;
+    private GridIndex gridIndex;
+    private boolean gridModified = false;
+    private File dateFile;
+    private DateIndex dateIndex;
+    private boolean dateIndexModified = false;
+    private File titleFile;
+    private TitleIndex titleIndex;
+    private boolean titleIndexModified = false;
+    private final WriteAheadLog wal;
+    private final DatasourceMetrics metrics = new DatasourceMetrics();
+
     /**
-     * Creates the FilePictureDatasource with the given file as datafile.
+     * Creates the FilePictureDatasource with the given file as datafile,
+     * using the storage mode {@link StorageMode#REWRITE}.
      *
      * @param filepath of the file to use as database file.
      * @throws IOException if accessing or creating the file failes
      */
     public FilePictureDatasource(String filepath) throws IOException {
+        this(filepath, StorageMode.REWRITE);
+    }
+
+    /**
+     * Creates the FilePictureDatasource with the given file as datafile.
+     *
+     * @param filepath    of the file to use as database file.
+     * @param storageMode how modifications are written to the datafile
+     * @throws IOException if accessing or creating the file failes
+     */
+    public FilePictureDatasource(String filepath, StorageMode storageMode) throws IOException {
         LOGGER.log(Level.CONFIG, "Creating FilePictureDataSource.");
+        this.storageMode = storageMode;
         file = new File(filepath);
         if(!file.exists()) throw new FileNotFoundException();
+        gridFile = new File(filepath + ".grid");
+        dateFile = new File(filepath + ".dates");
+        titleFile = new File(filepath + ".titles");
+        wal = new WriteAheadLog(new File(filepath + ".wal"), DEFAULT_COMMIT_INTERVAL);
+        wal.recover(file);
         LOGGER.log(Level.FINER, "filepath is set: {0}", filepath);
+        metaFile = new File(filepath + ".meta");
+        loadMetadata();
         LOGGER.log(Level.FINEST, "Ich darf nicht dargestellt werden");
         LOGGER.log(Level.INFO, "Created new instance of FilePictureDataSource");
     }
 
 
+    /**
+     * Sets the ratio of outdated lines (old versions and tombstones) to all lines of the datafile,
+     * above which the datafile is compacted. Only used in storage mode LOG_STRUCTURED.
+     *
+     * @param compactionThreshold ratio between 0 and 1 (default 0.5)
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        if(compactionThreshold < 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("Compaction threshold must be between 0 and 1");
+        }
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Sets the minimal time between two forces of the write-ahead log.
+     * Modifications of concurrent threads within this interval are committed with a single force.
+     *
+     * @param commitInterval interval in milliseconds (default 2), 0 forces the log as soon as possible
+     */
+    public void setCommitInterval(long commitInterval) {
+        wal.setCommitInterval(commitInterval);
+    }
+
+    /**
+     * Sets how full scans read the datafile.
+     *
+     * @param readMode read mode to use (default BUFFERED), ignored on Windows
+     */
+    public void setReadMode(ReadMode readMode) {
+        if(MAPPING_LOCKS_FILE && readMode != ReadMode.BUFFERED) {
+            LOGGER.log(Level.FINE, "Read mode {0} not supported on Windows, reading buffered", readMode);
+            return;
+        }
+        this.readMode = readMode;
+    }
+
+    /**
+     * Sets the pool used for scans in read mode PARALLEL.
+     *
+     * @param scanPool pool to run the scan tasks (default: common pool)
+     */
+    public void setScanPool(ForkJoinPool scanPool) {
+        this.scanPool = scanPool;
+    }
+
+    /**
+     * Deletes the datafile together with its sidecar files (indexes, metadata and write-ahead log),
+     * so a new datafile with the same path does not get the state of the old one.
+     * No datasource may be open on the datafile.
+     *
+     * @param filepath of the datafile
+     * @throws IOException if a file can not be deleted
+     */
+    static void deleteDatafile(String filepath) throws IOException {
+        Files.deleteIfExists(Paths.get(filepath));
+        for(String suffix : SIDECAR_SUFFIXES) {
+            Files.deleteIfExists(Paths.get(filepath + suffix));
+        }
+    }
+
+    /**
+     * @return metrics of this datasource
+     */
+    public DatasourceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics as MBeans at the platform MBean server, until the datasource is closed.
+     * The registration is optional, as the MBean server keeps the metrics of a datasource
+     * which is not closed reachable.
+     */
+    public void registerMBeans() {
+        metrics.register(getClass().getSimpleName(), file.getPath());
+    }
+
     @Override
     public void insert(Picture picture) throws IOException {
         LOGGER.log(Level.FINE, "Method insert called");
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(file, CHARSET, true))) {
-            writer.write(picture.getId() + DELIMITER +
-                DF.format(picture.getDate()) + DELIMITER +
-                picture.getLongitude() + DELIMITER +
-                picture.getLatitude() + DELIMITER +
-                picture.getTitle() + DELIMITER +
-                picture.getUrl());
-            writer.newLine();
+        insertAll(Collections.singletonList(picture));
+        LOGGER.log(Level.FINE, "Picture inserted: {0}", picture);
+    }
+
+    /**
+     * Inserts all pictures by appending them to the datafile, which is opened only once for the whole batch.
+     */
+    @Override
+    public void insertAll(Collection<Picture> pictures) throws IOException {
+        LOGGER.log(Level.FINE, "Method insertAll called");
+        long start = System.nanoTime();
+        try {
+            long sequence;
+            lock.writeLock().lock();
+            try {
+                if(storageMode == StorageMode.LOG_STRUCTURED) buildIndexIfNeeded();
+                long[] offsets = append(formatAll(pictures));
+                int i = 0;
+                for(Picture picture : pictures) {
+                    long offset = offsets[i++];
+                    if(storageMode == StorageMode.LOG_STRUCTURED) {
+                        index.put(picture.getId(), offset);
+                    } else if(index != null) {
+                        index.putIfAbsent(picture.getId(), offset);
+                    }
+                    addToGrid(picture, offset);
+                    addToDateIndex(picture, offset);
+                    addToTitleIndex(picture, offset);
+                }
+                if(storageMode == StorageMode.REWRITE && recordCount >= 0) recordCount += pictures.size();
+                scheduleCompactionIfNeeded();
+                sequence = wal.sequence();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            wal.awaitDurable(sequence);
+        } finally {
+            metrics.record(Operation.INSERT, start);
         }
-        LOGGER.log(Level.INFO, "Picture inserted: {0}", picture.toString());
     }
 
     @Override
     public void update(Picture picture) throws RecordNotFoundException, IOException {
         LOGGER.log(Level.FINE, "Method update called");
-        tempFile = new File(file.getParent(), "picture-data-temp.csv");
-        if(tempFile.exists()) tempFile.delete();
-        tempFile.createNewFile();
-        boolean recordFound = false;
-        try(BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile, CHARSET, true))) {
-            String line;
-            while((line = reader.readLine()) != null) {
-                String[] record = line.split(DELIMITER);
-                if(record[0].equals(picture.getId())) {
-                    writer.write(picture.getId() + DELIMITER +
-                        DF.format(picture.getDate()) + DELIMITER +
-                        picture.getLongitude() + DELIMITER +
-                        picture.getLatitude() + DELIMITER +
-                        picture.getTitle() + DELIMITER +
-                        picture.getUrl() + "\n");
-                    recordFound = true;
-                }
-                else {
-                    writer.write(line);
-                    writer.newLine();
+        updateAll(Collections.singletonList(picture));
+        LOGGER.log(Level.FINE, "Picture updated: {0}", picture);
+    }
+
+    /**
+     * Updates all pictures with a single pass over the datafile.
+     * If one of the pictures does not exist, the datafile is left unchanged.
+     */
+    @Override
+    public void updateAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        LOGGER.log(Level.FINE, "Method updateAll called");
+        long start = System.nanoTime();
+        try {
+            long sequence;
+            lock.writeLock().lock();
+            try {
+                if(storageMode == StorageMode.LOG_STRUCTURED) {
+                    buildIndexIfNeeded();
+                    checkExisting(pictures);
+                    long[] offsets = append(formatAll(pictures));
+                    int i = 0;
+                    for(Picture picture : pictures) {
+                        long offset = offsets[i++];
+                        index.put(picture.getId(), offset);
+                        addToGrid(picture, offset);
+                        addToDateIndex(picture, offset);
+                        addToTitleIndex(picture, offset);
+                    }
+                    scheduleCompactionIfNeeded();
+                } else {
+                    Map<String, Picture> updates = new HashMap<>();
+                    for(Picture picture : pictures) {
+                        updates.put(picture.getId(), picture);
+                    }
+                    rewrite(updates, Collections.emptySet());
                 }
+                sequence = wal.sequence();
+            } finally {
+                lock.writeLock().unlock();
             }
-
+            wal.awaitDurable(sequence);
+        } finally {
+            metrics.record(Operation.UPDATE, start);
         }
-        if(!recordFound){
-            String errorMessage = "No picture found.";
-            tempFile.delete();
-            LOGGER.log(Level.WARNING,"{0}", errorMessage);
-            throw new RecordNotFoundException(errorMessage);
-        }
-        file.delete();
-        tempFile.renameTo(file);
-        LOGGER.log(Level.INFO, "Picture updated: {0}", picture.toString());
     }
 
     @Override
     public void delete(Picture picture) throws RecordNotFoundException, IOException {
         LOGGER.log(Level.FINE, "Method delete called");
-        tempFile = new File(file.getParent(), "picture-data-temp.csv");
-        if(tempFile.exists()) tempFile.delete();
-        tempFile.createNewFile();
-        boolean recordFound = false;
-        try(BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile, CHARSET, true))) {
-            String line;
-            while(!recordFound && (line = reader.readLine()) != null) {
-                String[] record = line.split(DELIMITER);
-                if(record[0].equals(picture.getId())) {
-                    recordFound = true;
-                }
-                else {
-                    writer.write(line);
-                    writer.newLine();
+        deleteAll(Collections.singletonList(picture));
+        LOGGER.log(Level.FINE, "Picture deleted: {0}", picture);
+    }
+
+    /**
+     * Deletes all pictures with a single pass over the datafile.
+     * If one of the pictures does not exist, the datafile is left unchanged.
+     */
+    @Override
+    public void deleteAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        LOGGER.log(Level.FINE, "Method deleteAll called");
+        long start = System.nanoTime();
+        try {
+            long sequence;
+            lock.writeLock().lock();
+            try {
+                if(storageMode == StorageMode.LOG_STRUCTURED) {
+                    buildIndexIfNeeded();
+                    checkExisting(pictures);
+                    List<String> tombstones = new ArrayList<>(pictures.size());
+                    for(Picture picture : pictures) {
+                        tombstones.add(picture.getId() + DELIMITER + TOMBSTONE);
+                    }
+                    append(tombstones);
+                    for(Picture picture : pictures) {
+                        index.remove(picture.getId());
+                    }
+                    scheduleCompactionIfNeeded();
+                } else {
+                    Set<String> deletes = new HashSet<>();
+                    for(Picture picture : pictures) {
+                        deletes.add(picture.getId());
+                    }
+                    rewrite(Collections.emptyMap(), deletes);
                 }
+                sequence = wal.sequence();
+            } finally {
+                lock.writeLock().unlock();
             }
+            wal.awaitDurable(sequence);
+        } finally {
+            metrics.record(Operation.DELETE, start);
         }
-        if(!recordFound){
-            String errorMessage = "No picture found.";
-            LOGGER.log(Level.SEVERE, "AAHAHAHAHAHAHAHA! Kritische Situation");
-            LOGGER.log(Level.WARNING,"{0}", errorMessage);
-            tempFile.delete();
-            throw new RecordNotFoundException(errorMessage);
-        }
-        file.delete();
-        tempFile.renameTo(file);
-        LOGGER.log(Level.INFO, "Picture deleted: {0}", picture.toString());
     }
 
+    /**
+     * All records of a batch are checked before the datafile is modified.
+     */
+    @Override
+    public boolean hasAtomicBatches() {
+        return true;
+    }
+
+    /**
+     * Returns the number of records without reading the datafile, if the number is known
+     * from the modifications or from the sidecar file "&lt;datafile&gt;.meta".
+     * Otherwise the records are counted once.
+     */
     @Override
     public int count() throws IOException {
-        LOGGER.log(Level.FINE, "Method insert called");
-        int count = 0;
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            while(reader.readLine() != null) {
-                count++;
+        LOGGER.log(Level.FINE, "Method count called");
+        long start = System.nanoTime();
+        try {
+            lock.readLock().lock();
+            try {
+                long count = knownCount();
+                if(count >= 0) return (int) count;
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                if(knownCount() < 0) recount();
+                return (int) knownCount();
+            } finally {
+                lock.writeLock().unlock();
             }
+        } finally {
+            metrics.record(Operation.COUNT, start);
         }
-        return count;
+    }
+
+    /**
+     * @return number of records or -1 if it is not known
+     */
+    private long knownCount() {
+        if(storageMode == StorageMode.LOG_STRUCTURED && index != null) return index.size();
+        return recordCount;
+    }
+
+    /**
+     * Counts the records by reading the datafile. In storage mode REWRITE each line is a record,
+     * in storage mode LOG_STRUCTURED the index has to be built to find the valid records.
+     */
+    private void recount() throws IOException {
+        if(storageMode == StorageMode.LOG_STRUCTURED) {
+            buildIndex();
+        } else if(readMode == ReadMode.PARALLEL) {
+            recordCount = new ParallelRecordScan(file, scanPool).countLines();
+        } else if(readMode == ReadMode.MAPPED) {
+            try(MappedRecordScanner scanner = new MappedRecordScanner(file)) {
+                recordCount = scanner.countLines();
+            }
+        } else {
+            long count = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET))) {
+                while(reader.readLine() != null) {
+                    count++;
+                }
+            }
+            recordCount = count;
+        }
+        LOGGER.log(Level.FINER, "Counted {0} records", recordCount);
     }
 
     @Override
     public Picture findById(String id) throws IOException, ParseException, RecordNotFoundException {
         LOGGER.log(Level.FINE, "Method findById called");
-        try(BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET))) {
-            Picture picture = null;
-            String line;
-            boolean recordFound = false;
-            boolean searching = true;
-            while(searching && (line = reader.readLine()) != null) {
-                String[] record = line.split(DELIMITER);
-                if (id.equals(record[0])) {
-                    picture = new Picture(record[0],
-                        new URL(record[5]),
-                        DF.parse(record[1]),
-                        record[4],
-                        Float.parseFloat(record[2]),
-                        Float.parseFloat(record[3]));
-                    searching = false;
-                    recordFound = true;
+        long start = System.nanoTime();
+        try {
+            readLock(Required.ID);
+            try {
+                Long offset = index.get(id);
+                if(offset == null) throw new RecordNotFoundException("Record not found!");
+                try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    byte[] line = RecordReader.readAt(channel, offset);
+                    metrics.recordScan(1, line.length, 1);
+                    return parse(line);
                 }
+            } finally {
+                lock.readLock().unlock();
             }
-            if(!recordFound) throw new RecordNotFoundException("Record not found!");
-            return picture;
+        } finally {
+            metrics.record(Operation.FIND_BY_ID, start);
         }
     }
 
     @Override
     public Collection<Picture> findAll() throws IOException, ParseException {
         LOGGER.log(Level.FINE, "Method findAll called");
-        Collection<Picture> collection = new ArrayList<>();
-        try(BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET))) {
-            String line;
-            while((line = reader.readLine()) != null) {
-                String[] record = line.split(DELIMITER);
-                collection.add(new Picture(record[0],
-                    new URL(record[5]),
-                    DF.parse(record[1]),
-                    record[4],
-                    Float.parseFloat(record[2]),
-                    Float.parseFloat(record[3])));
+        long start = System.nanoTime();
+        try {
+            readLock(Required.LIVE);
+            try {
+                if(readMode == ReadMode.PARALLEL) {
+                    // the index is not modified during the scan, as the read lock is held
+                    LongAdder rows = new LongAdder();
+                    Collection<Picture> collection = new ParallelRecordScan(file, scanPool).scan(cursor -> {
+                        rows.increment();
+                        return cursor.length() > 0 && isLive(cursor) ? parse(cursor) : null;
+                    });
+                    metrics.recordScan(rows.sum(), file.length(), collection.size());
+                    return collection;
+                }
+                Collection<Picture> collection = new ArrayList<>();
+                long rows = 0;
+                try(RecordCursor cursor = openCursor()) {
+                    while(cursor.next()) {
+                        rows++;
+                        if(cursor.length() > 0 && isLive(cursor)) {
+                            collection.add(parse(cursor));
+                        }
+                    }
+                }
+                metrics.recordScan(rows, file.length(), collection.size());
+                return collection;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.FIND_ALL, start);
+        }
+    }
+
+    /**
+     * Copies the fields of the records from the bytes of the datafile into the columns of the store,
+     * without creating a Picture for each record. The datafile is always scanned sequentially.
+     */
+    @Override
+    public ColumnarPictureStore findAllColumnar() throws IOException, ParseException {
+        LOGGER.log(Level.FINE, "Method findAllColumnar called");
+        long start = System.nanoTime();
+        try {
+            readLock(Required.LIVE);
+            try {
+                long known = knownCount();
+                ColumnarPictureStore store = known > 0 ? new ColumnarPictureStore((int) known) : new ColumnarPictureStore();
+                PictureRecordParser parser = PARSER.get();
+                long rows = 0;
+                try(RecordCursor cursor = openCursor()) {
+                    while(cursor.next()) {
+                        rows++;
+                        if(cursor.length() > 0 && isLive(cursor)) {
+                            store.add(parser, cursor.bytes(), cursor.length());
+                        }
+                    }
+                }
+                metrics.recordScan(rows, file.length(), store.size());
+                return store;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.FIND_ALL, start);
+        }
+    }
+
+    /**
+     * Streams all records of the datafile, reading them lazily while the stream is consumed.
+     * The stream contains the records which existed when the stream was created.
+     * In storage mode LOG_STRUCTURED, records which are updated or deleted while the stream is open
+     * may be missing in the stream. Compactions are postponed until all streams are closed.
+     *
+     * @return stream of all pictures, which has to be closed after use
+     */
+    @Override
+    public Stream<Picture> streamAll() throws IOException {
+        LOGGER.log(Level.FINE, "Method streamAll called");
+        RecordCursor cursor;
+        long end;
+        readLock(Required.LIVE);
+        try {
+            cursor = openCursor();
+            end = file.length();
+            openStreams.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+        Spliterator<Picture> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+            Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Picture> action) {
+                try {
+                    while(cursor.next() && cursor.offset() < end) {
+                        boolean live;
+                        lock.readLock().lock();
+                        try {
+                            live = cursor.length() > 0 && isLive(cursor);
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                        if(live) {
+                            action.accept(parse(cursor));
+                            return true;
+                        }
+                    }
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (ParseException e) {
+                    throw new IllegalStateException("Invalid record at offset " + cursor.offset(), e);
+                }
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> closeStream(cursor));
+    }
+
+    private void closeStream(RecordCursor cursor) {
+        try {
+            cursor.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                openStreams.decrementAndGet();
+                scheduleCompactionIfNeeded();
+            } finally {
+                lock.writeLock().unlock();
             }
         }
-        return collection;
     }
 
     @Override
     public Collection<Picture> findByPosition(float longitude, float latitude, float deviation) throws IOException, ParseException {
         LOGGER.log(Level.FINE, "Method findByPosition called");
-        Collection<Picture> collection = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] splitter = line.split(DELIMITER);
-                Picture picture = new Picture(
-                    splitter[0],
-                    (new URL(splitter[5])),
-                    DF.parse(splitter[1]),
-                    splitter[4],
-                    Float.valueOf(splitter[2]),
-                    Float.valueOf(splitter[3]));
-
+        long start = System.nanoTime();
+        try {
+            readLock(Required.LIVE, Required.GRID);
+            try {
                 float latitudeMin = latitude - deviation;
                 float latitudeMax = latitude + deviation;
                 float longitudeMin = longitude - deviation;
                 float longitudeMax = longitude + deviation;
 
-                if ((picture.getLatitude() > latitudeMin) && (picture.getLatitude() < latitudeMax) && (picture.getLongitude() > longitudeMin) && (picture.getLongitude() < longitudeMax)) {
-                    collection.add(picture);
+                Collection<Picture> collection = new ArrayList<>();
+                long[] candidates = gridIndex.candidates(longitudeMin, latitudeMin, longitudeMax, latitudeMax);
+                long bytes = 0;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    for (long offset : candidates) {
+                        byte[] line = RecordReader.readAt(channel, offset);
+                        bytes += line.length;
+                        Picture picture = parse(line);
+                        if (storageMode == StorageMode.LOG_STRUCTURED && !Long.valueOf(offset).equals(index.get(picture.getId()))) continue;
+                        if ((picture.getLatitude() > latitudeMin) && (picture.getLatitude() < latitudeMax) && (picture.getLongitude() > longitudeMin) && (picture.getLongitude() < longitudeMax)) {
+                            collection.add(picture);
+                        }
+                    }
+                }
+                metrics.recordScan(candidates.length, bytes, collection.size());
+                if(LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.log(Level.FINER, "findByPosition checked {0} candidates", candidates.length);
+                }
+                return collection;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.FIND_BY_POSITION, start);
+        }
+    }
+
+    /**
+     * Reads only the records in the date range, found by the date index.
+     * In storage mode REWRITE all indexed records are valid, so the skipped records are not read at all.
+     */
+    @Override
+    public List<Picture> findByDateRange(Date from, Date to, int skip, int limit, boolean ascending) throws IOException, ParseException {
+        LOGGER.log(Level.FINE, "Method findByDateRange called");
+        long start = System.nanoTime();
+        try {
+            if(skip < 0 || limit < 0) throw new IllegalArgumentException("Skip and limit must not be negative");
+            readLock(Required.LIVE, Required.DATES);
+            try {
+                DateIndex dates = dateIndex;
+                int first = from == null ? 0 : dates.lowerBound(from.getTime());
+                int last = to == null ? dates.size() : dates.lowerBound(to.getTime());
+                List<Picture> collection = new ArrayList<>();
+                PictureRecordParser parser = PARSER.get();
+                long rows = 0;
+                long bytes = 0;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    int skipped = storageMode == StorageMode.REWRITE ? skip : 0;
+                    for (int i = skipped; i < last - first && collection.size() < limit; i++) {
+                        long offset = dates.offset(ascending ? first + i : last - 1 - i);
+                        byte[] line = RecordReader.readAt(channel, offset);
+                        rows++;
+                        bytes += line.length;
+                        if (storageMode == StorageMode.LOG_STRUCTURED) {
+                            parser.split(line, line.length);
+                            String id = new String(line, 0, parser.end(0), CHARSET);
+                            if (!Long.valueOf(offset).equals(index.get(id))) continue;
+                            if (skipped < skip) {
+                                skipped++;
+                                continue;
+                            }
+                        }
+                        collection.add(parse(line));
+                    }
+                }
+                metrics.recordScan(rows, bytes, collection.size());
+                return collection;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.FIND_BY_DATE_RANGE, start);
+        }
+    }
+
+    /**
+     * Looks up the words in the title index and reads only the records found.
+     */
+    @Override
+    public List<Picture> findByTitle(String words, boolean matchAll) throws IOException, ParseException {
+        LOGGER.log(Level.FINE, "Method findByTitle called");
+        long start = System.nanoTime();
+        try {
+            readLock(Required.LIVE, Required.TITLES);
+            try {
+                long[] candidates = titleIndex.find(TitleIndex.tokenize(words), matchAll);
+                List<Picture> collection = new ArrayList<>(candidates.length);
+                long bytes = 0;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    for (long offset : candidates) {
+                        byte[] line = RecordReader.readAt(channel, offset);
+                        bytes += line.length;
+                        Picture picture = parse(line);
+                        if (storageMode == StorageMode.LOG_STRUCTURED && !Long.valueOf(offset).equals(index.get(picture.getId()))) continue;
+                        collection.add(picture);
+                    }
+                }
+                metrics.recordScan(candidates.length, bytes, collection.size());
+                if(LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.log(Level.FINER, "findByTitle found {0} candidates", candidates.length);
                 }
+                return collection;
+            } finally {
+                lock.readLock().unlock();
             }
+        } finally {
+            metrics.record(Operation.FIND_BY_TITLE, start);
         }
-        return collection;
     }
 
+    /**
+     * Evaluates the conditions of the query on the bytes of the records and creates
+     * only the projections of the matching records. If the query has a bounding box,
+     * only the records found by the grid index are read, otherwise the datafile is scanned.
+     */
+    @Override
+    public List<PictureProjection> query(PictureQuery query) throws IOException, ParseException {
+        LOGGER.log(Level.FINE, "Method query called");
+        long start = System.nanoTime();
+        try {
+            if(query.hasBoundingBox()) {
+                readLock(Required.LIVE, Required.GRID);
+            } else {
+                readLock(Required.LIVE);
+            }
+            try {
+                PictureQuery.ResultCollector collector = query.collector();
+                PictureRecordParser parser = PARSER.get();
+                long rows = 0;
+                long bytes = 0;
+                if(query.hasBoundingBox()) {
+                    long[] candidates = gridIndex.candidates(query.getMinLongitude(), query.getMinLatitude(),
+                        query.getMaxLongitude(), query.getMaxLatitude());
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        for (long offset : candidates) {
+                            byte[] line = RecordReader.readAt(channel, offset);
+                            rows++;
+                            bytes += line.length;
+                            if(!query.matches(parser, line, line.length)) continue;
+                            if(storageMode == StorageMode.LOG_STRUCTURED) {
+                                String id = new String(line, 0, parser.end(0), CHARSET);
+                                if(!Long.valueOf(offset).equals(index.get(id))) continue;
+                            }
+                            if(!collector.add(query.project(parser, line))) break;
+                        }
+                    }
+                    if(LOGGER.isLoggable(Level.FINER)) {
+                        LOGGER.log(Level.FINER, "query checked {0} candidates", candidates.length);
+                    }
+                } else {
+                    try(RecordCursor cursor = openCursor()) {
+                        while(cursor.next()) {
+                            rows++;
+                            bytes += cursor.length() + 1;
+                            if(cursor.length() == 0) continue;
+                            if(storageMode == StorageMode.LOG_STRUCTURED && cursor.endsWith(TOMBSTONE_SUFFIX)) continue;
+                            byte[] line = cursor.bytes();
+                            if(query.matches(parser, line, cursor.length()) && isLive(cursor)
+                                && !collector.add(query.project(parser, line))) break;
+                        }
+                    }
+                }
+                List<PictureProjection> result = collector.result();
+                metrics.recordScan(rows, bytes, result.size());
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.QUERY, start);
+        }
+    }
+
+    /**
+     * Rewrites the datafile with only the valid records, i.e. without outdated versions and tombstones.
+     * Only has an effect in storage mode LOG_STRUCTURED and if no stream returned by {@link #streamAll()} is open.
+     *
+     * @throws IOException if the datafile can not be rewritten
+     */
+    public void compact() throws IOException {
+        long start = System.nanoTime();
+        try {
+            lock.writeLock().lock();
+            try {
+                compactionScheduled = false;
+                if(storageMode != StorageMode.LOG_STRUCTURED) return;
+                if(openStreams.get() > 0) {
+                    LOGGER.log(Level.FINE, "Compaction postponed, {0} streams are open", openStreams.get());
+                    return;
+                }
+                buildIndexIfNeeded();
+                LOGGER.log(Level.FINE, "Compacting datafile with {0} lines and {1} records", new Object[]{recordLines, index.size()});
+                File compactFile = new File(file.getPath() + ".compact");
+                Map<String, Long> newIndex = new HashMap<>();
+                GridIndex newGrid = gridIndex != null ? new GridIndex() : null;
+                DateIndex newDates = dateIndex != null ? new DateIndex() : null;
+                TitleIndex newTitles = titleIndex != null ? new TitleIndex() : null;
+                FileOutputStream out = new FileOutputStream(compactFile);
+                try(RecordReader reader = new RecordReader(file);
+                    OutputStream writer = new BufferedOutputStream(out)) {
+                    long written = 0;
+                    while(reader.next()) {
+                        if(reader.length() > 0 && isLive(reader)) {
+                            newIndex.put(reader.id(DELIMITER), written);
+                            if(newGrid != null) addToGrid(newGrid, reader, written);
+                            if(newDates != null) addToDateIndex(newDates, reader, written);
+                            if(newTitles != null) addToTitleIndex(newTitles, reader, written);
+                            writer.write(reader.bytes(), 0, reader.length());
+                            writer.write('\n');
+                            written += reader.length() + 1;
+                        }
+                    }
+                    writer.flush();
+                    out.getFD().sync();
+                    metrics.recordCompaction(written);
+                }
+                replaceDatafile(compactFile);
+                index = newIndex;
+                recordLines = newIndex.size();
+                replaceGrid(newGrid);
+                replaceDateIndex(newDates);
+                replaceTitleIndex(newTitles);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            metrics.record(Operation.COMPACT, start);
+        }
+    }
+
+    /**
+     * Waits for a running compaction, writes the grid, date and title indexes to their sidecar files, if they have been modified,
+     * and forces the datafile to disk, so the write-ahead log can be emptied. The metrics are unregistered from the MBean server, if registered.
+     */
+    @Override
+    public void close() throws IOException {
+        ExecutorService executor;
+        lock.writeLock().lock();
+        try {
+            executor = compactor;
+            compactor = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if(gridIndex != null && gridModified) {
+                gridIndex.save(gridFile, file.length(), file.lastModified());
+                gridModified = false;
+                LOGGER.log(Level.FINER, "Grid index saved to {0}", gridFile);
+            }
+            if(dateIndex != null && dateIndexModified) {
+                dateIndex.save(dateFile, file.length(), file.lastModified());
+                dateIndexModified = false;
+                LOGGER.log(Level.FINER, "Date index saved to {0}", dateFile);
+            }
+            if(titleIndex != null && titleIndexModified) {
+                titleIndex.save(titleFile, file.length(), file.lastModified());
+                titleIndexModified = false;
+                LOGGER.log(Level.FINER, "Title index saved to {0}", titleFile);
+            }
+            checkpoint();
+            wal.close();
+            saveMetadata();
+            metrics.unregister();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the index (id -> byte offset) by reading the whole datafile once.
+     * If an id occurs more than once, the first occurrence is indexed in storage mode REWRITE
+     * and the last one in storage mode LOG_STRUCTURED, where tombstones remove the record from the index.
+     */
+    private void buildIndex() throws IOException {
+        Map<String, Long> newIndex = new HashMap<>();
+        long lines = 0;
+        try(RecordCursor reader = openCursor()) {
+            while(reader.next()) {
+                if(storageMode == StorageMode.REWRITE) {
+                    lines++;
+                    newIndex.putIfAbsent(reader.id(DELIMITER), reader.offset());
+                } else if(reader.length() > 0) {
+                    lines++;
+                    if(reader.endsWith(TOMBSTONE_SUFFIX)) {
+                        newIndex.remove(reader.id(DELIMITER));
+                    } else {
+                        newIndex.put(reader.id(DELIMITER), reader.offset());
+                    }
+                }
+            }
+        }
+        index = newIndex;
+        if(storageMode == StorageMode.REWRITE) {
+            recordCount = lines;
+        } else {
+            recordLines = lines;
+        }
+        LOGGER.log(Level.FINER, "Index built with {0} entries", index.size());
+    }
+
+    private void buildIndexIfNeeded() throws IOException {
+        if(index == null) buildIndex();
+    }
+
+    /**
+     * Acquires the read lock, with the given indexes available until it is released.
+     * The indexes are built on first use: if one is missing, it is built holding the write lock,
+     * which is then downgraded to the read lock, so no writer can modify the datafile in between.
+     * Must not be called holding the read lock, as the write lock can not be acquired then.
+     * If building an index fails, no lock is held.
+     */
+    private void readLock(Required... required) throws IOException {
+        lock.readLock().lock();
+        if(available(required)) return;
+        lock.readLock().unlock();
+        if(lock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("Indexes can not be built while the read lock is held");
+        }
+        lock.writeLock().lock();
+        try {
+            for(Required index : required) {
+                switch(index) {
+                    case ID:
+                        buildIndexIfNeeded();
+                        break;
+                    case LIVE:
+                        if(storageMode == StorageMode.LOG_STRUCTURED) buildIndexIfNeeded();
+                        break;
+                    case GRID:
+                        loadGridIndex();
+                        break;
+                    case DATES:
+                        loadDateIndex();
+                        break;
+                    default:
+                        loadTitleIndex();
+                }
+            }
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean available(Required... required) {
+        for(Required index : required) {
+            switch(index) {
+                case ID:
+                    if(this.index == null) return false;
+                    break;
+                case LIVE:
+                    if(storageMode == StorageMode.LOG_STRUCTURED && this.index == null) return false;
+                    break;
+                case GRID:
+                    if(gridIndex == null) return false;
+                    break;
+                case DATES:
+                    if(dateIndex == null || !dateIndex.isSorted()) return false;
+                    break;
+                default:
+                    if(titleIndex == null) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the number of records from the sidecar file, if it has been written for the current state of the datafile.
+     */
+    private void loadMetadata() {
+        if(!metaFile.exists()) return;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)))) {
+            if(in.readInt() != META_MAGIC || in.readInt() != storageMode.ordinal()
+                || in.readLong() != file.length() || in.readLong() != file.lastModified()) {
+                LOGGER.log(Level.FINER, "Metadata {0} is stale", metaFile);
+                return;
+            }
+            recordCount = in.readLong();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Metadata could not be read", e);
+        }
+    }
+
+    /**
+     * Writes the number of records to the sidecar file, if it is known.
+     */
+    private void saveMetadata() throws IOException {
+        long count = knownCount();
+        if(count < 0) return;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metaFile)))) {
+            out.writeInt(META_MAGIC);
+            out.writeInt(storageMode.ordinal());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeLong(count);
+        }
+    }
+
+    /**
+     * Checks if the current line of the reader is a valid record.
+     * In storage mode LOG_STRUCTURED only the last version of a record is valid, tombstones are never valid.
+     */
+    private boolean isLive(RecordCursor reader) {
+        if(storageMode == StorageMode.REWRITE) return true;
+        return !reader.endsWith(TOMBSTONE_SUFFIX)
+            && Long.valueOf(reader.offset()).equals(index.get(reader.id(DELIMITER)));
+    }
+
+    /**
+     * Appends lines to the datafile, opening the file only once.
+     *
+     * @return byte offsets of the appended lines
+     */
+    private long[] append(List<String> lines) throws IOException {
+        long[] offsets = new long[lines.size()];
+        long start = file.length();
+        long offset = start;
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        if (offset > 0 && !endsWithNewline()) {
+            chunk.write('\n');
+            offset++;
+        }
+        int i = 0;
+        for(String line : lines) {
+            byte[] record = line.getBytes(CHARSET);
+            chunk.write(record);
+            chunk.write('\n');
+            offsets[i++] = offset;
+            offset += record.length + 1;
+        }
+        byte[] bytes = chunk.toByteArray();
+        wal.log(start, bytes);
+        try(OutputStream writer = new FileOutputStream(file, true)) {
+            writer.write(bytes);
+        }
+        metrics.recordWrite(bytes.length);
+        recordLines += lines.size();
+        if(wal.size() > WAL_CHECKPOINT_SIZE) checkpoint();
+        return offsets;
+    }
+
+    /**
+     * Forces the datafile to disk and empties the write-ahead log.
+     */
+    private void checkpoint() throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        wal.reset(file);
+    }
+
+    /**
+     * Atomically replaces the datafile by the given file, which has to be forced to disk already.
+     * The write-ahead log is emptied before, as its entries refer to the old datafile.
+     */
+    private void replaceDatafile(File newFile) throws IOException {
+        checkpoint();
+        Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        wal.reset(file);
+    }
+
+    /**
+     * Rewrites the datafile in a single pass, replacing the records with the given ids by the updated pictures
+     * and removing the first record of each id to delete. The index and the grid index are rebuilt on the way.
+     * If one of the ids is not found, the datafile is left unchanged.
+     *
+     * @param updates updated pictures by id
+     * @param deletes ids of the records to delete
+     * @throws RecordNotFoundException if one of the ids does not exist
+     */
+    private void rewrite(Map<String, Picture> updates, Set<String> deletes) throws RecordNotFoundException, IOException {
+        File tempFile = createTempFile();
+        Set<String> found = new HashSet<>();
+        Map<String, Long> newIndex = new HashMap<>();
+        GridIndex newGrid = gridIndex != null ? new GridIndex() : null;
+        DateIndex newDates = dateIndex != null ? new DateIndex() : null;
+        TitleIndex newTitles = titleIndex != null ? new TitleIndex() : null;
+        long lines = 0;
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try(RecordReader reader = new RecordReader(file);
+            OutputStream writer = new BufferedOutputStream(out)) {
+            long written = 0;
+            while(reader.next()) {
+                String id = reader.id(DELIMITER);
+                if(deletes.contains(id) && found.add(id)) continue;
+                newIndex.putIfAbsent(id, written);
+                Picture picture = updates.get(id);
+                if(picture != null) {
+                    byte[] record = format(picture).getBytes(CHARSET);
+                    writer.write(record);
+                    if(newGrid != null) newGrid.add(picture.getLongitude(), picture.getLatitude(), written);
+                    if(newDates != null) newDates.add(picture.getDate().getTime(), written);
+                    if(newTitles != null) newTitles.add(picture.getTitle(), written);
+                    written += record.length;
+                    found.add(id);
+                }
+                else {
+                    writer.write(reader.bytes(), 0, reader.length());
+                    if(newGrid != null) addToGrid(newGrid, reader, written);
+                    if(newDates != null) addToDateIndex(newDates, reader, written);
+                    if(newTitles != null) addToTitleIndex(newTitles, reader, written);
+                    written += reader.length();
+                }
+                writer.write('\n');
+                written++;
+                lines++;
+            }
+            writer.flush();
+            out.getFD().sync();
+            metrics.recordRewrite(written);
+        }
+        Set<String> missing = new HashSet<>(updates.keySet());
+        missing.addAll(deletes);
+        missing.removeAll(found);
+        if(!missing.isEmpty()) {
+            String errorMessage = "No picture found.";
+            tempFile.delete();
+            LOGGER.log(Level.WARNING, "{0} Ids: {1}", new Object[]{errorMessage, missing});
+            throw new RecordNotFoundException(errorMessage);
+        }
+        replaceDatafile(tempFile);
+        index = newIndex;
+        recordCount = lines;
+        replaceGrid(newGrid);
+        replaceDateIndex(newDates);
+        replaceTitleIndex(newTitles);
+    }
+
+    /**
+     * Checks that all pictures exist in the index.
+     *
+     * @throws RecordNotFoundException if one of the pictures does not exist
+     */
+    private void checkExisting(Collection<Picture> pictures) throws RecordNotFoundException {
+        for(Picture picture : pictures) {
+            if(!index.containsKey(picture.getId())) {
+                String errorMessage = "No picture found.";
+                LOGGER.log(Level.WARNING, "{0} Id: {1}", new Object[]{errorMessage, picture.getId()});
+                throw new RecordNotFoundException(errorMessage);
+            }
+        }
+    }
+
+    /**
+     * Schedules a compaction in background, if the ratio of outdated lines exceeds the compaction threshold.
+     */
+    private void scheduleCompactionIfNeeded() {
+        if(storageMode != StorageMode.LOG_STRUCTURED || index == null || compactionScheduled || openStreams.get() > 0 || recordLines == 0) return;
+        double garbageRatio = (double) (recordLines - index.size()) / recordLines;
+        if(garbageRatio > compactionThreshold) {
+            if(compactor == null) {
+                compactor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "picturedb-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            compactionScheduled = true;
+            compactor.submit(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Compaction failed", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the grid index from the sidecar file, if it is not loaded yet,
+     * or, if the sidecar is missing or stale, builds it by reading the whole datafile once.
+     * Has to be called holding the write lock.
+     */
+    private void loadGridIndex() throws IOException {
+        if(gridIndex == null) {
+            gridIndex = GridIndex.load(gridFile, file.length(), file.lastModified());
+            gridModified = false;
+        }
+        if(gridIndex == null) {
+            GridIndex newGrid = new GridIndex();
+            try(RecordCursor reader = openCursor()) {
+                while(reader.next()) {
+                    addToGrid(newGrid, reader, reader.offset());
+                }
+            }
+            gridIndex = newGrid;
+            gridModified = true;
+            LOGGER.log(Level.FINER, "Grid index built with {0} entries", gridIndex.size());
+        }
+    }
+
+    private void replaceGrid(GridIndex newGrid) {
+        if(newGrid != null) {
+            gridIndex = newGrid;
+            gridModified = true;
+        }
+    }
+
+    /**
+     * Adds an inserted or updated picture to the grid index, if it is loaded.
+     */
+    private void addToGrid(Picture picture, long offset) {
+        if(gridIndex != null) {
+            gridIndex.add(picture.getLongitude(), picture.getLatitude(), offset);
+            gridModified = true;
+        }
+    }
+
+    private static void addToGrid(GridIndex grid, RecordCursor reader, long offset) {
+        try {
+            String longitude = reader.field(2, DELIMITER);
+            String latitude = reader.field(3, DELIMITER);
+            if(longitude != null && latitude != null) {
+                grid.add(Float.parseFloat(longitude), Float.parseFloat(latitude), offset);
+            }
+        } catch (NumberFormatException e) {
+            if(LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.log(Level.FINER, "Record at offset {0} has no valid position", offset);
+            }
+        }
+    }
+
+    /**
+     * Loads the date index from the sidecar file, if it is not loaded yet,
+     * or, if the sidecar is missing or stale, builds it by reading the whole datafile once,
+     * and sorts it by date. Has to be called holding the write lock.
+     */
+    private void loadDateIndex() throws IOException {
+        if(dateIndex == null) {
+            dateIndex = DateIndex.load(dateFile, file.length(), file.lastModified());
+            dateIndexModified = false;
+        }
+        if(dateIndex == null) {
+            DateIndex newDates = new DateIndex();
+            try(RecordCursor reader = openCursor()) {
+                while(reader.next()) {
+                    addToDateIndex(newDates, reader, reader.offset());
+                }
+            }
+            dateIndex = newDates;
+            dateIndexModified = true;
+            LOGGER.log(Level.FINER, "Date index built with {0} entries", dateIndex.size());
+        }
+        dateIndex.sort();
+    }
+
+    private void replaceDateIndex(DateIndex newDates) {
+        if(newDates != null) {
+            dateIndex = newDates;
+            dateIndexModified = true;
+        }
+    }
+
+    /**
+     * Adds an inserted or updated picture to the date index, if it is loaded.
+     */
+    private void addToDateIndex(Picture picture, long offset) {
+        if(dateIndex != null) {
+            dateIndex.add(picture.getDate().getTime(), offset);
+            dateIndexModified = true;
+        }
+    }
+
+    private static void addToDateIndex(DateIndex dates, RecordCursor reader, long offset) {
+        if(reader.length() == 0) return;
+        PictureRecordParser parser = PARSER.get();
+        byte[] line = reader.bytes();
+        try {
+            parser.split(line, reader.length());
+            dates.add(parser.parseDateMillis(line, parser.start(1), parser.end(1)), offset);
+        } catch (ParseException e) {
+            if(LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.log(Level.FINER, "Record at offset {0} has no valid date", offset);
+            }
+        }
+    }
+
+    /**
+     * Loads the title index from the sidecar file, if it is not loaded yet,
+     * or, if the sidecar is missing or stale, builds it by reading the whole datafile once.
+     * Has to be called holding the write lock.
+     */
+    private void loadTitleIndex() throws IOException {
+        if(titleIndex == null) {
+            titleIndex = TitleIndex.load(titleFile, file.length(), file.lastModified());
+            titleIndexModified = false;
+        }
+        if(titleIndex == null) {
+            TitleIndex newTitles = new TitleIndex();
+            try(RecordCursor reader = openCursor()) {
+                while(reader.next()) {
+                    addToTitleIndex(newTitles, reader, reader.offset());
+                }
+            }
+            titleIndex = newTitles;
+            titleIndexModified = true;
+            LOGGER.log(Level.FINER, "Title index built with {0} entries", titleIndex.size());
+        }
+    }
+
+    private void replaceTitleIndex(TitleIndex newTitles) {
+        if(newTitles != null) {
+            titleIndex = newTitles;
+            titleIndexModified = true;
+        }
+    }
+
+    /**
+     * Adds an inserted or updated picture to the title index, if it is loaded.
+     */
+    private void addToTitleIndex(Picture picture, long offset) {
+        if(titleIndex != null) {
+            titleIndex.add(picture.getTitle(), offset);
+            titleIndexModified = true;
+        }
+    }
+
+    private static void addToTitleIndex(TitleIndex titles, RecordCursor reader, long offset) {
+        if(reader.length() == 0) return;
+        PictureRecordParser parser = PARSER.get();
+        byte[] line = reader.bytes();
+        try {
+            parser.split(line, reader.length());
+            titles.add(new String(line, parser.start(4), parser.end(4) - parser.start(4), CHARSET), offset);
+        } catch (ParseException e) {
+            if(LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.log(Level.FINER, "Record at offset {0} has no title", offset);
+            }
+        }
+    }
+
+    /**
+     * Opens a cursor over all lines of the datafile according to the read mode.
+     */
+    private RecordCursor openCursor() throws IOException {
+        if(readMode != ReadMode.BUFFERED) return new MappedRecordScanner(file);
+        return new RecordReader(file);
+    }
+
+    /**
+     * Creates a new temporary file in the directory of the datafile, used to rewrite the datafile.
+     */
+    private File createTempFile() throws IOException {
+        return File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    private static String format(Picture picture) {
+        return picture.getId() + DELIMITER +
+            DF.get().format(picture.getDate()) + DELIMITER +
+            picture.getLongitude() + DELIMITER +
+            picture.getLatitude() + DELIMITER +
+            picture.getTitle() + DELIMITER +
+            picture.getUrl();
+    }
+
+    private static List<String> formatAll(Collection<Picture> pictures) {
+        List<String> lines = new ArrayList<>(pictures.size());
+        for(Picture picture : pictures) {
+            lines.add(format(picture));
+        }
+        return lines;
+    }
+
+    private static Picture parse(RecordCursor cursor) throws MalformedURLException, ParseException {
+        return PARSER.get().parse(cursor.bytes(), cursor.length());
+    }
+
+    private static Picture parse(byte[] line) throws MalformedURLException, ParseException {
+        return PARSER.get().parse(line, line.length);
+    }
 }
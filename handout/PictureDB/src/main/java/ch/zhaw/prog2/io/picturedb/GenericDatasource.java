@@ -1,8 +1,10 @@
 package ch.zhaw.prog2.io.picturedb;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.Collection;
+import java.util.stream.Stream;
 
 /**
  * Generic data store interface to persist items of type T
@@ -13,7 +15,7 @@ import java.util.Collection;
  *
  * @param <T extends Record> Record data type to persist
  */
-public interface GenericDatasource<T extends Record> {
+public interface GenericDatasource<T extends Record> extends Closeable {
     /**
      * Insert a new record to the data store.
      * The id field of the record is ignored, and a new unique id is generated,
@@ -48,6 +50,61 @@ public interface GenericDatasource<T extends Record> {
      */
     public void delete(T record) throws RecordNotFoundException, IOException;
 
+    /**
+     * Inserts all given records into the data store (see {@link #insert(Record)}).
+     * Implementations may write the whole batch at once, which is much faster than single inserts.
+     * The default implementation inserts the records one by one.
+     *
+     * @param records records to insert into the data set
+     */
+    public default void insertAll(Collection<T> records) throws IOException {
+        for (T record : records) {
+            insert(record);
+        }
+    }
+
+    /**
+     * Updates all given records in the data set (see {@link #update(Record)}).
+     * Implementations may apply the whole batch at once, which is much faster than single updates.
+     * If one of the records can not be found, an {@link RecordNotFoundException} is thrown.
+     * The default implementation updates the records one by one, i.e. the records before the missing one
+     * are already updated. Implementations may check all records first and leave the data set unchanged.
+     *
+     * @param records records to be updated in the dataset
+     * @throws RecordNotFoundException if one of the records is not existing
+     */
+    public default void updateAll(Collection<T> records) throws RecordNotFoundException, IOException {
+        for (T record : records) {
+            update(record);
+        }
+    }
+
+    /**
+     * Deletes all given records from the data set (see {@link #delete(Record)}).
+     * Implementations may apply the whole batch at once, which is much faster than single deletes.
+     * If one of the records can not be found, an {@link RecordNotFoundException} is thrown.
+     * The default implementation deletes the records one by one, i.e. the records before the missing one
+     * are already deleted. Implementations may check all records first and leave the data set unchanged.
+     *
+     * @param records records to be deleted
+     * @throws RecordNotFoundException if one of the records is not existing
+     */
+    public default void deleteAll(Collection<T> records) throws RecordNotFoundException, IOException {
+        for (T record : records) {
+            delete(record);
+        }
+    }
+
+    /**
+     * Tells if {@link #updateAll(Collection)} and {@link #deleteAll(Collection)} leave the data set unchanged
+     * if they throw a {@link RecordNotFoundException}. The default implementations do not.
+     *
+     * @return true if a failing batch is not applied at all
+     */
+    public default boolean hasAtomicBatches() {
+        return false;
+    }
+
     /**
      * Returns the number of records in the data set
      * @return number of records
@@ -67,4 +124,27 @@ public interface GenericDatasource<T extends Record> {
      * @return collection of all records of the data set
      */
     public Collection<T> findAll() throws IOException, ParseException;
+
+    /**
+     * Retrieves all records of the data set as stream.
+     * Implementations may read the records lazily while the stream is consumed,
+     * so the whole data set does not have to be held in memory.
+     * The stream has to be closed after use (e.g. using try-with-resources) to release the underlying resources.
+     * Errors while reading the stream are thrown as unchecked exceptions
+     * (e.g. {@link java.io.UncheckedIOException}).
+     * The default implementation streams the result of {@link #findAll()}.
+     *
+     * @return stream of all records of the data set
+     */
+    public default Stream<T> streamAll() throws IOException, ParseException {
+        return findAll().stream();
+    }
+
+    /**
+     * Releases the resources of the data store and persists pending state (e.g. indexes).
+     * The default implementation does nothing.
+     */
+    @Override
+    public default void close() throws IOException {
+    }
 }
@@ -0,0 +1,146 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Spatial index over longitude/latitude using a uniform grid.
+ * The coordinate space is divided into square cells of CELL_SIZE degrees.
+ * Each cell holds the byte offsets of all records located in it.
+ * A bounding box query returns the offsets of all records in the cells
+ * touched by the box, which then have to be checked against the exact box.
+ *
+ * The index can be stored in a sidecar file next to the datafile.
+ * The sidecar contains the length and modification time of the datafile it was built from,
+ * which allows to detect a stale index when loading it.
+ */
+class GridIndex {
+    static final float CELL_SIZE = 1.0f;
+    private static final int MAGIC = 0x47524944; // "GRID"
+
+    private final Map<Long, OffsetList> cells = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Adds a record to the index.
+     *
+     * @param longitude longitude of the record
+     * @param latitude  latitude of the record
+     * @param offset    byte offset of the record in the datafile
+     */
+    void add(float longitude, float latitude, long offset) {
+        if (Float.isNaN(longitude) || Float.isNaN(latitude)) return;
+        cells.computeIfAbsent(key(cell(longitude), cell(latitude)), k -> new OffsetList()).add(offset);
+        size++;
+    }
+
+    /**
+     * Returns the offsets of all records in the cells overlapping the given bounding box,
+     * sorted ascending (i.e. in the order of the datafile).
+     */
+    long[] candidates(float minLongitude, float minLatitude, float maxLongitude, float maxLatitude) {
+        int minX = cell(minLongitude);
+        int maxX = cell(maxLongitude);
+        int minY = cell(minLatitude);
+        int maxY = cell(maxLatitude);
+        OffsetList result = new OffsetList();
+        long cellsInBox = ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+        if (cellsInBox > cells.size()) {
+            // large box: check the occupied cells instead of all cells of the box
+            for (Map.Entry<Long, OffsetList> entry : cells.entrySet()) {
+                int x = (int) (entry.getKey() >> 32);
+                int y = (int) (long) entry.getKey();
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    result.addAll(entry.getValue());
+                }
+            }
+        } else {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    OffsetList offsets = cells.get(key(x, y));
+                    if (offsets != null) result.addAll(offsets);
+                }
+            }
+        }
+        long[] candidates = result.toArray();
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * @return number of indexed records
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the index to the given sidecar file.
+     *
+     * @param sidecar      file to write the index to
+     * @param dataLength   length of the datafile the index belongs to
+     * @param dataModified modification time of the datafile the index belongs to
+     */
+    void save(File sidecar, long dataLength, long dataModified) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            out.writeInt(MAGIC);
+            out.writeFloat(CELL_SIZE);
+            out.writeLong(dataLength);
+            out.writeLong(dataModified);
+            out.writeInt(cells.size());
+            for (Map.Entry<Long, OffsetList> entry : cells.entrySet()) {
+                OffsetList offsets = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(offsets.size());
+                for (int i = 0; i < offsets.size(); i++) {
+                    out.writeLong(offsets.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the index from the given sidecar file.
+     *
+     * @return the index or null if the sidecar does not exist or does not match the datafile
+     */
+    static GridIndex load(File sidecar, long dataLength, long dataModified) throws IOException {
+        if (!sidecar.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readFloat() != CELL_SIZE
+                || in.readLong() != dataLength || in.readLong() != dataModified) {
+                return null;
+            }
+            GridIndex index = new GridIndex();
+            int cellCount = in.readInt();
+            for (int c = 0; c < cellCount; c++) {
+                long key = in.readLong();
+                int count = in.readInt();
+                OffsetList offsets = new OffsetList();
+                for (int i = 0; i < count; i++) {
+                    offsets.add(in.readLong());
+                }
+                index.cells.put(key, offsets);
+                index.size += count;
+            }
+            return index;
+        }
+    }
+
+    private static int cell(float coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+}
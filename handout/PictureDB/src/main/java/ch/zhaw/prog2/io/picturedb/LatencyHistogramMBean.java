@@ -0,0 +1,24 @@
+package ch.zhaw.prog2.io.picturedb;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. All latencies are in microseconds.
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getPercentile50();
+
+    long getPercentile90();
+
+    long getPercentile99();
+
+    long getPercentile999();
+
+    long getValueAtPercentile(double percentile);
+
+    void reset();
+}
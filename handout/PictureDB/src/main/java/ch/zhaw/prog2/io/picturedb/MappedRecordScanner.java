@@ -0,0 +1,226 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a datafile from a memory mapped window of the file.
+ * Line terminators and field delimiters are searched directly in the mapped bytes,
+ * only the fields which are requested are decoded into Strings.
+ *
+ * The file is mapped in windows of WINDOW_SIZE bytes. If a line crosses the end of a window,
+ * the next window is mapped starting at the beginning of that line.
+ * The windows of a scanner restricted to a byte range do not extend beyond the range,
+ * except for the last line of the range.
+ * The scanner can be restricted to the lines starting in a byte range of the file.
+ *
+ * A scanner holds a single window, the previous window is dropped when the next one is mapped.
+ * There is no way to unmap a window explicitly, it stays mapped until it is garbage collected.
+ * On Windows the file can not be replaced or deleted while it is mapped, so the scanner must not be used
+ * there for files which are replaced (see {@link FilePictureDatasource.ReadMode}).
+ */
+class MappedRecordScanner implements RecordCursor {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_FIELDS = 8;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long fileSize;
+    private final long end;
+    // windows are not mapped beyond this position
+    private long mapEnd;
+    private long position;
+
+    private MappedByteBuffer buffer;
+    // view of the buffer used for bulk copies, so the position of the buffer is not modified
+    private ByteBuffer view;
+    private long windowStart;
+    private int windowSize = WINDOW_SIZE;
+
+    private long offset = -1;
+    private int lineStart;
+    private int lineEnd;
+
+    private String splitDelimiter;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+    private byte[] decodeBuffer = new byte[256];
+    private byte[] lineBuffer = new byte[256];
+
+    /**
+     * Creates a scanner over the whole file.
+     *
+     * @param file datafile to read
+     * @throws IOException if the file can not be opened
+     */
+    MappedRecordScanner(File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), true, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a scanner over all lines starting in the byte range [start, end) of the file.
+     * The start position has to be the beginning of a line.
+     * The channel is not closed by the scanner.
+     *
+     * @param channel channel of the datafile
+     * @param start   position of the first line
+     * @param end     lines starting at or after this position are not read
+     */
+    MappedRecordScanner(FileChannel channel, long start, long end) throws IOException {
+        this(channel, false, start, end);
+    }
+
+    private MappedRecordScanner(FileChannel channel, boolean ownsChannel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.fileSize = channel.size();
+        this.position = start;
+        this.end = Math.min(end, fileSize);
+        this.mapEnd = this.end;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (position >= end) return false;
+        if (buffer == null || position < windowStart || position >= windowStart + buffer.limit()) {
+            map(position);
+        }
+        int from = (int) (position - windowStart);
+        int i = from;
+        while (true) {
+            int limit = buffer.limit();
+            while (i < limit && buffer.get(i) != '\n') i++;
+            if (i < limit || windowStart + limit >= fileSize) break;
+            // line crosses the end of the window
+            if (windowStart + limit >= mapEnd) {
+                // last line of the range
+                mapEnd = fileSize;
+            } else if (from == 0) {
+                windowSize = (int) Math.min(Integer.MAX_VALUE, 2L * windowSize);
+            }
+            map(position);
+            i = i - from;
+            from = 0;
+        }
+        offset = position;
+        lineStart = from;
+        lineEnd = i;
+        position = windowStart + Math.min(i + 1, buffer.limit());
+        if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') lineEnd--;
+        splitDelimiter = null;
+        return true;
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, mapEnd - start));
+        view = buffer.duplicate();
+    }
+
+    /**
+     * Counts the lines starting in the range of this scanner without decoding anything.
+     *
+     * @return number of lines
+     */
+    long countLines() throws IOException {
+        long count = 0;
+        while (next()) count++;
+        return count;
+    }
+
+    @Override
+    public long offset() {
+        return offset;
+    }
+
+    @Override
+    public int length() {
+        return lineEnd - lineStart;
+    }
+
+    @Override
+    public byte[] bytes() {
+        int length = length();
+        if (lineBuffer.length < length) lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+        view.position(lineStart);
+        view.get(lineBuffer, 0, length);
+        return lineBuffer;
+    }
+
+    @Override
+    public String line() {
+        return decode(lineStart, lineEnd);
+    }
+
+    @Override
+    public boolean endsWith(byte[] suffix) {
+        if (suffix.length > length()) return false;
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer.get(lineEnd - suffix.length + i) != suffix[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String id(String delimiter) {
+        return field(0, delimiter);
+    }
+
+    @Override
+    public String field(int index, String delimiter) {
+        split(delimiter);
+        if (index >= fieldCount) return null;
+        return decode(fieldStart[index], fieldEnd[index]);
+    }
+
+    /**
+     * Determines the start and end positions of the fields of the current line.
+     */
+    private void split(String delimiter) {
+        if (delimiter.equals(splitDelimiter)) return;
+        byte[] pattern = delimiter.getBytes(CHARSET);
+        fieldCount = 0;
+        int start = lineStart;
+        int i = lineStart;
+        while (i <= lineEnd - pattern.length && fieldCount < MAX_FIELDS - 1) {
+            int j = 0;
+            while (j < pattern.length && buffer.get(i + j) == pattern[j]) j++;
+            if (j == pattern.length) {
+                fieldStart[fieldCount] = start;
+                fieldEnd[fieldCount++] = i;
+                i += pattern.length;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount++] = lineEnd;
+        splitDelimiter = delimiter;
+    }
+
+    private String decode(int from, int to) {
+        int length = to - from;
+        if (decodeBuffer.length < length) decodeBuffer = Arrays.copyOf(decodeBuffer, Math.max(length, decodeBuffer.length * 2));
+        for (int i = 0; i < length; i++) {
+            decodeBuffer[i] = buffer.get(from + i);
+        }
+        return new String(decodeBuffer, 0, length, CHARSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        view = null;
+        if (ownsChannel) channel.close();
+    }
+}
@@ -0,0 +1,36 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive offsets, used by the indexes to avoid boxing.
+ */
+class OffsetList {
+    private long[] values = new long[4];
+    private int size = 0;
+
+    void add(long value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    void addAll(OffsetList other) {
+        if (size + other.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    long get(int index) {
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
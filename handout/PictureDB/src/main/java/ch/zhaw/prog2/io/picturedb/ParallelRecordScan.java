@@ -0,0 +1,157 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Scans a datafile in parallel.
+ * The file is split into byte ranges which are aligned to line boundaries.
+ * Each range is read by its own {@link MappedRecordScanner} in a task of a ForkJoinPool.
+ * The results of the ranges are merged in the order of the file.
+ */
+class ParallelRecordScan {
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Function applied to each line of the file.
+     *
+     * @param <R> type of the result
+     */
+    interface LineFunction<R> {
+        /**
+         * @param cursor cursor positioned on the current line
+         * @return result for the line or null if the line does not contribute to the result
+         */
+        R apply(RecordCursor cursor) throws IOException, ParseException;
+    }
+
+    private final File file;
+    private final ForkJoinPool pool;
+
+    ParallelRecordScan(File file, ForkJoinPool pool) {
+        this.file = file;
+        this.pool = pool;
+    }
+
+    /**
+     * Applies the function to all lines of the file in parallel.
+     *
+     * @param function function applied to each line
+     * @return all non-null results in the order of the file
+     */
+    <R> List<R> scan(LineFunction<R> function) throws IOException, ParseException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            List<Future<List<R>>> futures = new ArrayList<>();
+            for(int i = 0; i < bounds.length - 1; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                futures.add(pool.submit(() -> {
+                    List<R> results = new ArrayList<>();
+                    try(MappedRecordScanner scanner = new MappedRecordScanner(channel, start, end)) {
+                        while(scanner.next()) {
+                            R result = function.apply(scanner);
+                            if(result != null) results.add(result);
+                        }
+                    }
+                    return results;
+                }));
+            }
+            List<R> merged = new ArrayList<>();
+            for(Future<List<R>> future : futures) {
+                merged.addAll(join(future));
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Counts the lines of the file in parallel.
+     *
+     * @return number of lines
+     */
+    long countLines() throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            List<Future<Long>> futures = new ArrayList<>();
+            for(int i = 0; i < bounds.length - 1; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                futures.add(pool.submit(() -> {
+                    try(MappedRecordScanner scanner = new MappedRecordScanner(channel, start, end)) {
+                        return scanner.countLines();
+                    }
+                }));
+            }
+            long count = 0;
+            for(Future<Long> future : futures) {
+                try {
+                    count += join(future);
+                } catch (ParseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Splits the file into ranges starting at the beginning of a line.
+     *
+     * @return positions of the range boundaries, the first is 0, the last is the file size
+     */
+    long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, size / MIN_CHUNK_SIZE));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        for(int i = 1; i < chunks; i++) {
+            long bound = lineStartAfter(channel, size * i / chunks);
+            if(bound > bounds.get(bounds.size() - 1) && bound < size) bounds.add(bound);
+        }
+        bounds.add(size);
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return position of the first line starting at or after the given position
+     */
+    private static long lineStartAfter(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long pos = position - 1;
+        while(true) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if(n <= 0) return channel.size();
+            for(int i = 0; i < n; i++) {
+                if(buffer.get(i) == '\n') return pos + i + 1;
+            }
+            pos += n;
+        }
+    }
+
+    private static <T> T join(Future<T> future) throws IOException, ParseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof ParseException) throw (ParseException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
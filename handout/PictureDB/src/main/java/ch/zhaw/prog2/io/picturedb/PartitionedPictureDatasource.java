@@ -0,0 +1,354 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * PictureDatasource which distributes the pictures over several partitions (e.g. one datafile each),
+ * based on the hash code of their id. Operations on a single picture are routed to its partition only,
+ * so a modification in storage mode REWRITE rewrites only the datafile of one partition.
+ * Batches are split by partition and the parts are applied in parallel.
+ * Queries over all pictures are executed on all partitions in parallel and the results are merged.
+ *
+ * The assignment of ids to partitions depends on the number of partitions,
+ * so the number must not be changed as long as the partitions contain pictures.
+ * Batch modifications are atomic per partition only: if a picture is not found in one partition,
+ * the parts of the batch in the other partitions may have been applied.
+ *
+ * The datasource can be used by several threads, if the partitions can.
+ */
+public class PartitionedPictureDatasource implements PictureDatasource {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+    private static final String PARTITION_FILE = "picture-data-%d.csv";
+
+    private final List<PictureDatasource> partitions;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a datasource over the given partitions.
+     * The partitions are closed when this datasource is closed.
+     *
+     * @param partitions datasources holding the partitions, in a fixed order
+     */
+    public PartitionedPictureDatasource(List<? extends PictureDatasource> partitions) {
+        if(partitions.isEmpty()) throw new IllegalArgumentException("At least one partition is required");
+        this.partitions = new ArrayList<>(partitions);
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(partitions.size(), runnable -> {
+            Thread thread = new Thread(runnable, "picturedb-partition-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a datasource with the given number of FilePictureDatasources in the directory,
+     * using the datafiles "picture-data-0.csv" to "picture-data-&lt;partitions - 1&gt;.csv".
+     * Missing datafiles are created.
+     *
+     * @param directory   directory of the datafiles
+     * @param partitions  number of partitions
+     * @param storageMode storage mode of the partitions
+     * @throws IOException if a datafile can not be created or the directory contains more partitions
+     */
+    public PartitionedPictureDatasource(String directory, int partitions, FilePictureDatasource.StorageMode storageMode) throws IOException {
+        this(openPartitions(new File(directory), partitions, storageMode));
+    }
+
+    private static List<FilePictureDatasource> openPartitions(File directory, int partitions, FilePictureDatasource.StorageMode storageMode) throws IOException {
+        if(partitions <= 0) throw new IllegalArgumentException("Number of partitions must be positive");
+        if(new File(directory, String.format(PARTITION_FILE, partitions)).exists()) {
+            throw new IOException("Directory " + directory + " contains more than " + partitions + " partitions");
+        }
+        List<FilePictureDatasource> datasources = new ArrayList<>(partitions);
+        try {
+            for(int i = 0; i < partitions; i++) {
+                File file = new File(directory, String.format(PARTITION_FILE, i));
+                if(file.createNewFile()) LOGGER.log(Level.FINE, "Partition created: {0}", file);
+                datasources.add(new FilePictureDatasource(file.getPath(), storageMode));
+            }
+        } catch (IOException e) {
+            for(FilePictureDatasource datasource : datasources) {
+                datasource.close();
+            }
+            throw e;
+        }
+        return datasources;
+    }
+
+    /**
+     * @return number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @return index of the partition holding the picture with the given id
+     */
+    int partitionOf(String id) {
+        return Math.floorMod(id.hashCode(), partitions.size());
+    }
+
+    private PictureDatasource partition(Picture picture) {
+        return partitions.get(partitionOf(picture.getId()));
+    }
+
+    @Override
+    public void insert(Picture picture) throws IOException {
+        partition(picture).insert(picture);
+    }
+
+    @Override
+    public void insertAll(Collection<Picture> pictures) throws IOException {
+        try {
+            applyByPartition(pictures, PictureDatasource::insertAll);
+        } catch (RecordNotFoundException e) {
+            throw new IllegalStateException("Insert reported a missing picture", e);
+        }
+    }
+
+    @Override
+    public void update(Picture picture) throws RecordNotFoundException, IOException {
+        partition(picture).update(picture);
+    }
+
+    @Override
+    public void updateAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        applyByPartition(pictures, PictureDatasource::updateAll);
+    }
+
+    @Override
+    public void delete(Picture picture) throws RecordNotFoundException, IOException {
+        partition(picture).delete(picture);
+    }
+
+    @Override
+    public void deleteAll(Collection<Picture> pictures) throws RecordNotFoundException, IOException {
+        applyByPartition(pictures, PictureDatasource::deleteAll);
+    }
+
+    @Override
+    public int count() throws IOException {
+        try {
+            int count = 0;
+            for(int partitionCount : fanOut(PictureDatasource::count)) {
+                count += partitionCount;
+            }
+            return count;
+        } catch (ParseException e) {
+            throw new IllegalStateException("Count reported a parse error", e);
+        }
+    }
+
+    @Override
+    public Picture findById(String id) throws IOException, ParseException, RecordNotFoundException {
+        return partitions.get(partitionOf(id)).findById(id);
+    }
+
+    /**
+     * Returns the pictures of all partitions, in the order of the partitions.
+     */
+    @Override
+    public Collection<Picture> findAll() throws IOException, ParseException {
+        return concat(fanOut(PictureDatasource::findAll));
+    }
+
+    /**
+     * Streams the pictures of the partitions one after the other, each partition is opened when it is reached.
+     */
+    @Override
+    public Stream<Picture> streamAll() {
+        return partitions.stream().flatMap(partition -> {
+            try {
+                return partition.streamAll();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ParseException e) {
+                throw new IllegalStateException("Invalid record in partition", e);
+            }
+        });
+    }
+
+    @Override
+    public Collection<Picture> findByPosition(float longitude, float latitude, float deviation) throws IOException, ParseException {
+        return concat(fanOut(partition -> partition.findByPosition(longitude, latitude, deviation)));
+    }
+
+    /**
+     * Requests the first skip + limit pictures of each partition and merges them by date.
+     * Pictures with the same date are ordered by partition.
+     */
+    @Override
+    public List<Picture> findByDateRange(Date from, Date to, int skip, int limit, boolean ascending) throws IOException, ParseException {
+        if(skip < 0 || limit < 0) throw new IllegalArgumentException("Skip and limit must not be negative");
+        int perPartition = (int) Math.min(Integer.MAX_VALUE, (long) skip + limit);
+        List<Picture> merged = concat(fanOut(partition -> partition.findByDateRange(from, to, 0, perPartition, ascending)));
+        Comparator<Picture> byDate = Comparator.comparing(Picture::getDate);
+        merged.sort(ascending ? byDate : byDate.reversed());
+        if(skip >= merged.size()) return new ArrayList<>();
+        return new ArrayList<>(merged.subList(skip, (int) Math.min(merged.size(), (long) skip + limit)));
+    }
+
+    @Override
+    public List<Picture> findByTitle(String words, boolean matchAll) throws IOException, ParseException {
+        return concat(fanOut(partition -> partition.findByTitle(words, matchAll)));
+    }
+
+    /**
+     * Executes the query on all partitions and applies order and limit again to the merged results.
+     */
+    @Override
+    public List<PictureProjection> query(PictureQuery query) throws IOException, ParseException {
+        PictureQuery.ResultCollector collector = query.collector();
+        for(List<PictureProjection> result : fanOut(partition -> partition.query(query))) {
+            for(PictureProjection projection : result) {
+                if(!collector.add(projection)) return collector.result();
+            }
+        }
+        return collector.result();
+    }
+
+    /**
+     * Closes all partitions, even if closing one of them fails.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        IOException failure = null;
+        for(PictureDatasource partition : partitions) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                if(failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * Query executed on a single partition.
+     */
+    private interface PartitionQuery<R> {
+        R apply(PictureDatasource partition) throws IOException, ParseException;
+    }
+
+    /**
+     * Modification of the pictures of a single partition.
+     */
+    private interface PartitionUpdate {
+        void apply(PictureDatasource partition, List<Picture> pictures) throws IOException, RecordNotFoundException;
+    }
+
+    /**
+     * Executes the query on all partitions in parallel.
+     *
+     * @return the results in the order of the partitions
+     */
+    private <R> List<R> fanOut(PartitionQuery<R> query) throws IOException, ParseException {
+        List<Future<R>> futures = new ArrayList<>(partitions.size());
+        for(PictureDatasource partition : partitions) {
+            futures.add(executor.submit(() -> query.apply(partition)));
+        }
+        try {
+            return await(futures);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof ParseException) throw (ParseException) cause;
+            throw rethrow(cause);
+        }
+    }
+
+    /**
+     * Splits the pictures by partition and applies the modification to the parts in parallel.
+     * A part containing all pictures is applied in the calling thread.
+     */
+    private void applyByPartition(Collection<Picture> pictures, PartitionUpdate update) throws IOException, RecordNotFoundException {
+        List<List<Picture>> parts = new ArrayList<>(partitions.size());
+        for(int i = 0; i < partitions.size(); i++) {
+            parts.add(new ArrayList<>());
+        }
+        for(Picture picture : pictures) {
+            parts.get(partitionOf(picture.getId())).add(picture);
+        }
+        List<Future<Void>> futures = new ArrayList<>(partitions.size());
+        for(int i = 0; i < partitions.size(); i++) {
+            List<Picture> part = parts.get(i);
+            PictureDatasource partition = partitions.get(i);
+            if(part.isEmpty()) continue;
+            if(part.size() == pictures.size()) {
+                update.apply(partition, part);
+                return;
+            }
+            futures.add(executor.submit(() -> {
+                update.apply(partition, part);
+                return null;
+            }));
+        }
+        try {
+            await(futures);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RecordNotFoundException) throw (RecordNotFoundException) cause;
+            throw rethrow(cause);
+        }
+    }
+
+    /**
+     * Waits for all futures, also if one of them fails, so no partition is still working afterwards.
+     *
+     * @return the results in the order of the futures
+     * @throws ExecutionException of the first failed future
+     */
+    private static <R> List<R> await(List<Future<R>> futures) throws InterruptedIOException, ExecutionException {
+        List<R> results = new ArrayList<>(futures.size());
+        ExecutionException failure = null;
+        for(Future<R> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for partitions");
+            } catch (ExecutionException e) {
+                if(failure == null) failure = e;
+            }
+        }
+        if(failure != null) throw failure;
+        return results;
+    }
+
+    /**
+     * Rethrows an IOException, RuntimeException or Error thrown by a partition.
+     */
+    private static IOException rethrow(Throwable cause) {
+        if(cause instanceof IOException) return (IOException) cause;
+        if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if(cause instanceof Error) throw (Error) cause;
+        throw new IllegalStateException("Unexpected exception in partition", cause);
+    }
+
+    private static <T> List<T> concat(List<? extends Collection<T>> results) {
+        List<T> merged = new ArrayList<>();
+        for(Collection<T> result : results) {
+            merged.addAll(result);
+        }
+        return merged;
+    }
+}
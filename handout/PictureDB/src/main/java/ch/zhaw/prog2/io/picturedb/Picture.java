@@ -14,12 +14,7 @@ public class Picture extends Record {
     private final float latitude;
 
     public Picture(URL url, Date date, String title, float longitude, float latitude) {
-        this.id = UUID.randomUUID().toString();
-        this.url = url;
-        this.date = date;
-        this.title = title;
-        this.longitude = longitude;
-        this.latitude = latitude;
+        this(UUID.randomUUID().toString(), url, date, title, longitude, latitude);
     }
 
     public Picture(URL url, String title) {
@@ -27,8 +22,13 @@ public class Picture extends Record {
     }
 
     protected Picture(String id, URL url, Date date, String title, float longitude, float latitude) {
-        this(url,date, title, longitude, latitude);
+        // the id is given, so no random UUID has to be generated (which is expensive when reading many records)
         this.id = id;
+        this.url = url;
+        this.date = date;
+        this.title = title;
+        this.longitude = longitude;
+        this.latitude = latitude;
     }
 
     public URL getUrl() {
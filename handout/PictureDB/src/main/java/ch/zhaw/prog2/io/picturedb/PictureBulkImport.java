@@ -0,0 +1,359 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports pictures in the CSV format of {@link FilePictureDatasource} ("id; yyyy-MM-dd HH:mm:ss; longitude; latitude; title; url")
+ * from a stream into a datasource, without reading the whole input into memory.
+ *
+ * The import is a pipeline of three stages connected by bounded queues:
+ * the calling thread reads chunks of lines, several parser threads parse and validate the lines of a chunk
+ * and a single writer thread inserts the pictures in batches with {@link PictureDatasource#insertAll(java.util.Collection)}.
+ * If a stage is slower than the others, the queues fill up and the faster stages wait.
+ * The writer restores the order of the chunks, so the pictures are inserted in the order of the input.
+ * The reader takes a permit for each chunk, which the writer returns when it has taken the chunk from its
+ * reorder buffer, so at most {@value #CHUNKS_PER_PARSER} chunks per parser thread are in the pipeline
+ * (also if one parser is slow) and the memory used is bounded independently of the size of the input.
+ *
+ * Lines which can not be parsed or have coordinates out of range are rejected and counted,
+ * the first {@value #MAX_REPORTED_REJECTIONS} are reported with their line number in the {@link Result}.
+ * Empty lines are skipped.
+ */
+public class PictureBulkImport {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+    private static final int CHUNK_LINES = 1024;
+    private static final int CHUNKS_PER_PARSER = 4;
+    private static final int DEFAULT_BATCH_SIZE = 8192;
+    static final int MAX_REPORTED_REJECTIONS = 100;
+
+    private final PictureDatasource datasource;
+    private final int parserThreads;
+    private final int batchSize;
+
+    /**
+     * Creates the import with batches of {@value #DEFAULT_BATCH_SIZE} pictures and one parser thread
+     * per available processor, except the processors needed by the reader and the writer.
+     *
+     * @param datasource datasource to insert the pictures into
+     */
+    public PictureBulkImport(PictureDatasource datasource) {
+        this(datasource, Math.max(1, Runtime.getRuntime().availableProcessors() - 2), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates the import.
+     *
+     * @param datasource    datasource to insert the pictures into
+     * @param parserThreads number of threads parsing lines in parallel
+     * @param batchSize     number of pictures inserted at once
+     */
+    public PictureBulkImport(PictureDatasource datasource, int parserThreads, int batchSize) {
+        if(parserThreads <= 0) throw new IllegalArgumentException("Number of parser threads must be positive");
+        if(batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive");
+        this.datasource = datasource;
+        this.parserThreads = parserThreads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports all records of the stream. The stream is not closed.
+     *
+     * @param in stream containing the records, encoded in UTF-8
+     * @return numbers of imported and rejected records
+     * @throws IOException if reading the stream or writing to the datasource fails.
+     *                     The pictures of the batches written before remain in the datasource.
+     *                     A RuntimeException or Error thrown by the datasource is rethrown unchanged.
+     */
+    public Result importFrom(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        BlockingQueue<Chunk> lines = new ArrayBlockingQueue<>(2 * parserThreads);
+        BlockingQueue<Chunk> parsed = new ArrayBlockingQueue<>(2 * parserThreads);
+        Semaphore chunkPermits = new Semaphore(CHUNKS_PER_PARSER * parserThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(parserThreads + 1, threadFactory());
+        Result result = new Result();
+        try {
+            for(int i = 0; i < parserThreads; i++) {
+                executor.execute(() -> parse(lines, parsed));
+            }
+            Future<?> writer = executor.submit(() -> {
+                write(parsed, chunkPermits, result);
+                return null;
+            });
+            try {
+                read(in, lines, chunkPermits, result);
+            } finally {
+                // each parser forwards its end marker to the writer
+                for(int i = 0; i < parserThreads; i++) {
+                    lines.put(Chunk.END);
+                }
+            }
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if(e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IOException("Import failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Reader stage: splits the stream into chunks of lines. Each chunk takes a permit, returned by the writer.
+     */
+    private void read(InputStream in, BlockingQueue<Chunk> lines, Semaphore chunkPermits, Result result) throws IOException, InterruptedException {
+        RecordReader reader = new RecordReader(in);
+        long lineNumber = 0;
+        int sequence = 0;
+        Chunk chunk = new Chunk(sequence++, 1);
+        while(reader.next()) {
+            lineNumber++;
+            chunk.lines.add(Arrays.copyOf(reader.bytes(), reader.length()));
+            if(chunk.lines.size() == CHUNK_LINES) {
+                if(result.writeFailed) break;
+                chunkPermits.acquire();
+                lines.put(chunk);
+                chunk = new Chunk(sequence++, lineNumber + 1);
+            }
+        }
+        result.lines = lineNumber;
+        if(!chunk.lines.isEmpty() && !result.writeFailed) {
+            chunkPermits.acquire();
+            lines.put(chunk);
+        }
+    }
+
+    /**
+     * Parser stage: parses the lines of each chunk into pictures, collecting the rejected lines.
+     */
+    private void parse(BlockingQueue<Chunk> lines, BlockingQueue<Chunk> parsed) {
+        PictureRecordParser parser = new PictureRecordParser();
+        try {
+            while(true) {
+                Chunk chunk = lines.take();
+                if(chunk == Chunk.END) {
+                    parsed.put(Chunk.END);
+                    return;
+                }
+                for(int i = 0; i < chunk.lines.size(); i++) {
+                    byte[] line = chunk.lines.get(i);
+                    if(line.length == 0) continue;
+                    try {
+                        chunk.pictures.add(validate(parser.parse(line, line.length)));
+                    } catch (Exception e) {
+                        chunk.rejections.add(new Rejection(chunk.firstLine + i, e.getMessage() != null ? e.getMessage() : e.toString()));
+                    }
+                }
+                chunk.lines = null;
+                parsed.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Picture validate(Picture picture) {
+        if(picture.getId().isEmpty()) throw new IllegalArgumentException("Id is empty");
+        if(!(picture.getLongitude() >= -180 && picture.getLongitude() <= 180)) {
+            throw new IllegalArgumentException("Longitude out of range: " + picture.getLongitude());
+        }
+        if(!(picture.getLatitude() >= -90 && picture.getLatitude() <= 90)) {
+            throw new IllegalArgumentException("Latitude out of range: " + picture.getLatitude());
+        }
+        return picture;
+    }
+
+    /**
+     * Writer stage: inserts the pictures in the order of the chunks, in batches of batchSize pictures.
+     * After a failed insert (also by a RuntimeException or Error) the remaining chunks are only drained
+     * until all parsers have ended, so the other stages do not block.
+     * The permit of a chunk is returned as soon as the chunk has been taken from the reorder buffer or drained.
+     */
+    private void write(BlockingQueue<Chunk> parsed, Semaphore chunkPermits, Result result) throws IOException, InterruptedException {
+        Map<Integer, Chunk> pending = new HashMap<>();
+        List<Picture> batch = new ArrayList<>(batchSize);
+        Throwable failure = null;
+        int next = 0;
+        int ended = 0;
+        while(ended < parserThreads) {
+            Chunk chunk = parsed.take();
+            if(chunk == Chunk.END) {
+                ended++;
+                continue;
+            }
+            if(failure != null) {
+                chunkPermits.release();
+                continue;
+            }
+            pending.put(chunk.sequence, chunk);
+            try {
+                while((chunk = pending.remove(next)) != null) {
+                    next++;
+                    chunkPermits.release();
+                    result.addRejections(chunk.rejections);
+                    for(Picture picture : chunk.pictures) {
+                        batch.add(picture);
+                        if(batch.size() == batchSize) insert(batch, result);
+                    }
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                failure = e;
+                result.writeFailed = true;
+                chunkPermits.release(pending.size());
+                pending.clear();
+            }
+        }
+        if(failure instanceof IOException) throw (IOException) failure;
+        if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if(failure != null) throw (Error) failure;
+        if(!batch.isEmpty()) insert(batch, result);
+    }
+
+    private void insert(List<Picture> batch, Result result) throws IOException {
+        datasource.insertAll(batch);
+        result.imported += batch.size();
+        batch.clear();
+        LOGGER.log(Level.FINER, "Imported {0} pictures", result.imported);
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "picturedb-import-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Lines read from the input, replaced by the parsed pictures and the rejected lines after parsing.
+     */
+    private static class Chunk {
+        private static final Chunk END = new Chunk(-1, 0);
+
+        private final int sequence;
+        private final long firstLine;
+        private List<byte[]> lines = new ArrayList<>(CHUNK_LINES);
+        private final List<Picture> pictures = new ArrayList<>();
+        private final List<Rejection> rejections = new ArrayList<>();
+
+        private Chunk(int sequence, long firstLine) {
+            this.sequence = sequence;
+            this.firstLine = firstLine;
+        }
+    }
+
+    /**
+     * A rejected line of the input.
+     */
+    public static class Rejection {
+        private final long lineNumber;
+        private final String reason;
+
+        Rejection(long lineNumber, String reason) {
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+        }
+
+        /**
+         * @return number of the line in the input, starting with 1
+         */
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + ": " + reason;
+        }
+    }
+
+    /**
+     * Result of an import.
+     */
+    public static class Result {
+        private long lines;
+        private long imported;
+        private long rejected;
+        private long elapsedNanos;
+        private final List<Rejection> rejections = new ArrayList<>();
+        private volatile boolean writeFailed = false;
+
+        private void addRejections(List<Rejection> chunkRejections) {
+            rejected += chunkRejections.size();
+            for(Rejection rejection : chunkRejections) {
+                if(LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Rejected {0}", rejection);
+                }
+                if(rejections.size() < MAX_REPORTED_REJECTIONS) rejections.add(rejection);
+            }
+        }
+
+        /**
+         * @return number of lines read, including empty and rejected lines
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return the first rejected lines, at most {@value PictureBulkImport#MAX_REPORTED_REJECTIONS}
+         */
+        public List<Rejection> getRejections() {
+            return Collections.unmodifiableList(rejections);
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return imported records per second
+         */
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d pictures imported, %d lines rejected in %.1f s (%.0f records/s)",
+                imported, rejected, elapsedNanos / 1e9, getRecordsPerSecond());
+        }
+    }
+}
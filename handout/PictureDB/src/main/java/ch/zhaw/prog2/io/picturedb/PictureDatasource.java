@@ -2,7 +2,13 @@ package ch.zhaw.prog2.io.picturedb;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
 public interface PictureDatasource extends GenericDatasource<Picture> {
     /**
@@ -17,4 +23,84 @@ public interface PictureDatasource extends GenericDatasource<Picture> {
      * @return Collection of all Picture records in the area
      */
     Collection<Picture>findByPosition(float longitude, float latitude, float deviation) throws IOException, ParseException;
+
+    /**
+     * Retrieves all images taken in a date range, ordered ascending by date.
+     * @param from first date of the range (inclusive), null for no lower bound
+     * @param to   end of the range (exclusive), null for no upper bound
+     * @return List of all Picture records in the range
+     */
+    default List<Picture> findByDateRange(Date from, Date to) throws IOException, ParseException {
+        return findByDateRange(from, to, 0, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Retrieves one page of the images taken in a date range, ordered by date.
+     * Images with the same date are returned in the order of the datasource (reversed if descending).
+     * The default implementation filters and sorts the result of {@link #findAll()}.
+     * @param from      first date of the range (inclusive), null for no lower bound
+     * @param to        end of the range (exclusive), null for no upper bound
+     * @param skip      number of images to skip, i.e. the position of the first image of the page
+     * @param limit     maximal number of images to return, i.e. the size of the page
+     * @param ascending true for the oldest images first, false for the newest images first
+     * @return List of the Picture records of the page
+     */
+    default List<Picture> findByDateRange(Date from, Date to, int skip, int limit, boolean ascending) throws IOException, ParseException {
+        if(skip < 0 || limit < 0) throw new IllegalArgumentException("Skip and limit must not be negative");
+        List<Picture> pictures = new ArrayList<>();
+        for(Picture picture : findAll()) {
+            if((from == null || !picture.getDate().before(from)) && (to == null || picture.getDate().before(to))) {
+                pictures.add(picture);
+            }
+        }
+        if(!ascending) Collections.reverse(pictures);
+        Comparator<Picture> byDate = Comparator.comparing(Picture::getDate);
+        pictures.sort(ascending ? byDate : byDate.reversed());
+        if(skip >= pictures.size()) return new ArrayList<>();
+        return new ArrayList<>(pictures.subList(skip, (int) Math.min(pictures.size(), (long) skip + limit)));
+    }
+
+    /**
+     * Retrieves all images whose title contains the given words.
+     * Words are sequences of letters and digits, compared case insensitive.
+     * The default implementation checks the titles of the result of {@link #findAll()}.
+     * @param words    words to search, separated by spaces or punctuation
+     * @param matchAll true if the title has to contain all words (AND), false if any of the words (OR)
+     * @return List of the matching Picture records, empty if no words are given
+     */
+    default List<Picture> findByTitle(String words, boolean matchAll) throws IOException, ParseException {
+        Set<String> terms = TitleIndex.tokenize(words);
+        List<Picture> pictures = new ArrayList<>();
+        if(terms.isEmpty()) return pictures;
+        for(Picture picture : findAll()) {
+            Set<String> title = TitleIndex.tokenize(picture.getTitle());
+            if(matchAll ? title.containsAll(terms) : !Collections.disjoint(title, terms)) pictures.add(picture);
+        }
+        return pictures;
+    }
+
+    /**
+     * Executes a query and returns the selected fields of the matching pictures.
+     * The default implementation filters the result of {@link #findAll()},
+     * datasources can evaluate the query without creating the pictures.
+     * @param query query to execute
+     * @return projections of the matching pictures, ordered and limited as defined by the query
+     */
+    default List<PictureProjection> query(PictureQuery query) throws IOException, ParseException {
+        PictureQuery.ResultCollector collector = query.collector();
+        for(Picture picture : findAll()) {
+            if(query.matches(picture) && !collector.add(query.project(picture))) break;
+        }
+        return collector.result();
+    }
+
+    /**
+     * Returns all pictures in a {@link ColumnarPictureStore}, which needs only a fraction of the memory
+     * of a collection of pictures. The default implementation copies the result of {@link #findAll()},
+     * datasources can fill the store without creating the pictures.
+     * @return store containing all pictures
+     */
+    default ColumnarPictureStore findAllColumnar() throws IOException, ParseException {
+        return new ColumnarPictureStore(findAll());
+    }
 }
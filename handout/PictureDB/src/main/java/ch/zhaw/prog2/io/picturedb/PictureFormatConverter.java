@@ -0,0 +1,105 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.util.Collection;
+
+/**
+ * Converts picture data between the CSV format of {@link FilePictureDatasource}
+ * and the binary format of {@link BinaryPictureDatasource}.
+ *
+ * Usage:
+ * <pre>
+ *   PictureFormatConverter to-binary &lt;csv-file&gt; &lt;binary-file&gt;
+ *   PictureFormatConverter to-csv &lt;binary-file&gt; &lt;csv-file&gt;
+ * </pre>
+ * After the conversion the size of both files and the time to read all records
+ * from each of them is printed, to compare the two formats.
+ */
+public class PictureFormatConverter {
+    private static PrintWriter out = new PrintWriter(System.out, true);
+
+    public static void main(String[] args) {
+        if(args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-csv"))) {
+            out.println("Usage: PictureFormatConverter (to-binary <csv-file> <binary-file> | to-csv <binary-file> <csv-file>)");
+            return;
+        }
+        try {
+            String csvPath = args[0].equals("to-binary") ? args[1] : args[2];
+            String binaryPath = args[0].equals("to-binary") ? args[2] : args[1];
+            int count = args[0].equals("to-binary") ? csvToBinary(csvPath, binaryPath) : binaryToCsv(binaryPath, csvPath);
+            out.println(count + " pictures converted");
+            compare(csvPath, binaryPath);
+        } catch (IOException | ParseException e) {
+            out.println("Conversion failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes all pictures of the CSV file to a new binary file.
+     * An existing binary file is replaced.
+     *
+     * @return number of converted pictures
+     */
+    public static int csvToBinary(String csvPath, String binaryPath) throws IOException, ParseException {
+        try(PictureDatasource source = new FilePictureDatasource(csvPath);
+            PictureDatasource target = new BinaryPictureDatasource(createEmpty(binaryPath, false))) {
+            return copy(source, target);
+        }
+    }
+
+    /**
+     * Writes all pictures of the binary file to a new CSV file.
+     * An existing CSV file is replaced.
+     *
+     * @return number of converted pictures
+     */
+    public static int binaryToCsv(String binaryPath, String csvPath) throws IOException, ParseException {
+        try(PictureDatasource source = new BinaryPictureDatasource(binaryPath);
+            PictureDatasource target = new FilePictureDatasource(createEmpty(csvPath, true))) {
+            return copy(source, target);
+        }
+    }
+
+    /**
+     * Prints the file sizes and the time needed by findAll for both formats.
+     */
+    static void compare(String csvPath, String binaryPath) throws IOException, ParseException {
+        out.printf("%-8s %12s %12s%n", "format", "bytes", "findAll ms");
+        try(PictureDatasource csv = new FilePictureDatasource(csvPath)) {
+            out.printf("%-8s %12d %12.1f%n", "csv", new File(csvPath).length(), timeFindAll(csv));
+        }
+        try(PictureDatasource binary = new BinaryPictureDatasource(binaryPath)) {
+            out.printf("%-8s %12d %12.1f%n", "binary", new File(binaryPath).length(), timeFindAll(binary));
+        }
+    }
+
+    private static double timeFindAll(PictureDatasource datasource) throws IOException, ParseException {
+        long start = System.nanoTime();
+        datasource.findAll();
+        return (System.nanoTime() - start) / 1_000_000.0;
+    }
+
+    private static int copy(PictureDatasource source, PictureDatasource target) throws IOException, ParseException {
+        Collection<Picture> pictures = source.findAll();
+        target.insertAll(pictures);
+        return pictures.size();
+    }
+
+    /**
+     * Replaces the file by an empty one. The sidecar files of a CSV file are deleted as well,
+     * otherwise the indexes or the write-ahead log of the old file would be applied to the new one.
+     */
+    private static String createEmpty(String path, boolean csv) throws IOException {
+        File file = new File(path);
+        if(csv) {
+            FilePictureDatasource.deleteDatafile(path);
+        } else if(file.exists()) {
+            file.delete();
+        }
+        file.createNewFile();
+        return path;
+    }
+}
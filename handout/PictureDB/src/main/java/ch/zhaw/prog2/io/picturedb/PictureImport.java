@@ -1,6 +1,8 @@
 package ch.zhaw.prog2.io.picturedb;
 
 import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -10,12 +12,17 @@ import java.net.URL;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.logging.LogManager;
 
 /* This test-application reads some picture data from terminal,
  * saves it to the datasource, read it from the DB and prints the result
+ *
+ * Bulk import of records in the CSV format of the datafile (see PictureBulkImport):
+ *   PictureImport import <datafile> [<input-file> ...]
+ * reads the input files one after the other, or the standard input if no file (or "-") is given.
  */
 
 public class PictureImport {
@@ -23,45 +30,84 @@ public class PictureImport {
     private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
     private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
     private static PrintWriter out = new PrintWriter(System.out, true);
+    // one reader for all prompts, as a reader may buffer more than the current line
+    private static final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
     private DataSource ds;
 
     public static void main (String[] args)  {
+        if (args.length > 0) {
+            bulkImport(args);
+            return;
+        }
         try {
             initializeLogProperties();
-            PictureDatasource dataSource = new FilePictureDatasource(PICTUREDB);
-            Picture picture = createPicture();
-            dataSource.insert(picture);
-            Picture readPicture = dataSource.findById(picture.getId());
-            if (readPicture != null) {
-                out.println("The following pictures has been saved: ");
-                out.println(readPicture);
-            } else {
-                out.println("Picture with id=" + picture.getId() + " not found.");
-            }
+            try (PictureDatasource dataSource = new FilePictureDatasource(PICTUREDB)) {
+                Picture picture = createPicture();
+                dataSource.insert(picture);
+                Picture readPicture = dataSource.findById(picture.getId());
+                if (readPicture != null) {
+                    out.println("The following pictures has been saved: ");
+                    out.println(readPicture);
+                } else {
+                    out.println("Picture with id=" + picture.getId() + " not found.");
+                }
 
-            Collection<Picture> pictures = dataSource.findAll();
-            System.out.println("Pictures:");
-            for (Picture pict : pictures) {
-                System.out.println(pict.toString());
-            }
+                Collection<Picture> pictures = dataSource.findAll();
+                System.out.println("Pictures:");
+                for (Picture pict : pictures) {
+                    System.out.println(pict.toString());
+                }
 
-            System.out.println("Well done");
-            try {
-                dataSource.delete(new Picture("Omegalul",
-                    new URL("https://static.geo.de/bilder/62/dd/63111/article_image_big/panda-cb-18781595.jpg"),
-                    DF.parse("2020-05-12 21:29:05"),
-                    "Panda",
-                    0.0f,
-                    0.0f));
-            } catch (RecordNotFoundException e) {
-                System.out.println("Das picture wurde nicht gefunden.");
+                System.out.println("Well done");
+                try {
+                    dataSource.delete(new Picture("Omegalul",
+                        new URL("https://static.geo.de/bilder/62/dd/63111/article_image_big/panda-cb-18781595.jpg"),
+                        DF.parse("2020-05-12 21:29:05"),
+                        "Panda",
+                        0.0f,
+                        0.0f));
+                } catch (RecordNotFoundException e) {
+                    System.out.println("Das picture wurde nicht gefunden.");
+                }
+                System.out.println("Well done2");
             }
-            System.out.println("Well done2");
         } catch(Exception e) {
             System.out.println("Hobala: " + e.getMessage());
         }
     }
 
+    private static void bulkImport(String[] args) {
+        if (args.length < 2 || !args[0].equals("import")) {
+            out.println("Usage: PictureImport import <datafile> [<input-file> ... | -]");
+            return;
+        }
+        try {
+            initializeLogProperties();
+            try (FilePictureDatasource dataSource = new FilePictureDatasource(args[1])) {
+                // the progress of a long import can be watched with JConsole
+                dataSource.registerMBeans();
+                PictureBulkImport bulkImport = new PictureBulkImport(dataSource);
+                String[] inputs = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[]{"-"};
+                for (String input : inputs) {
+                    PictureBulkImport.Result result;
+                    if (input.equals("-")) {
+                        result = bulkImport.importFrom(System.in);
+                    } else {
+                        try (InputStream stream = new FileInputStream(input)) {
+                            result = bulkImport.importFrom(stream);
+                        }
+                    }
+                    out.println(input + ": " + result);
+                    for (PictureBulkImport.Rejection rejection : result.getRejections()) {
+                        out.println("  rejected " + rejection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            out.println("Import failed: " + e.getMessage());
+        }
+    }
+
     private static void initializeLogProperties() throws IOException {
         InputStream config = PictureImport.class.getClassLoader().getResourceAsStream("log.properties");
         if(config == null) throw new IllegalArgumentException("'log.properties' does not exist");
@@ -107,16 +153,10 @@ public class PictureImport {
     // prompt function -- to read input string
     static String prompt(String prompt) {
         try {
-            StringBuffer buffer = new StringBuffer();
             System.out.print(prompt);
             System.out.flush();
-            InputStreamReader in = new InputStreamReader(System.in);
-            int c = in.read();
-            while (c != '\n' && c != -1) {
-                buffer.append((char) c);
-                c = in.read();
-            }
-            return buffer.toString().trim();
+            String line = in.readLine();
+            return line == null ? "" : line.trim();
         } catch (IOException e) {
             return "";
         }
@@ -0,0 +1,116 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.util.Date;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Result of a {@link PictureQuery} containing only the selected fields of a picture.
+ * In contrast to {@link Picture} the url is kept as String, so no URL object has to be created.
+ * Accessing a field which has not been selected throws an IllegalStateException.
+ */
+public class PictureProjection {
+    private final Set<PictureQuery.Field> fields;
+    private final String id;
+    private final long date;
+    private final float longitude;
+    private final float latitude;
+    private final String title;
+    private final String url;
+
+    PictureProjection(Set<PictureQuery.Field> fields, String id, long date, float longitude, float latitude,
+                      String title, String url) {
+        this.fields = fields;
+        this.id = id;
+        this.date = date;
+        this.longitude = longitude;
+        this.latitude = latitude;
+        this.title = title;
+        this.url = url;
+    }
+
+    public String getId() {
+        check(PictureQuery.Field.ID);
+        return id;
+    }
+
+    public Date getDate() {
+        check(PictureQuery.Field.DATE);
+        return new Date(date);
+    }
+
+    public float getLongitude() {
+        check(PictureQuery.Field.LONGITUDE);
+        return longitude;
+    }
+
+    public float getLatitude() {
+        check(PictureQuery.Field.LATITUDE);
+        return latitude;
+    }
+
+    public String getTitle() {
+        check(PictureQuery.Field.TITLE);
+        return title;
+    }
+
+    public String getUrl() {
+        check(PictureQuery.Field.URL);
+        return url;
+    }
+
+    /**
+     * @return true if the field has been selected by the query
+     */
+    public boolean contains(PictureQuery.Field field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * @return the value of the field used to order the results
+     */
+    Comparable<?> value(PictureQuery.Field field) {
+        switch(field) {
+            case ID: return id;
+            case DATE: return date;
+            case LONGITUDE: return longitude;
+            case LATITUDE: return latitude;
+            case TITLE: return title;
+            default: return url;
+        }
+    }
+
+    private void check(PictureQuery.Field field) {
+        if(!fields.contains(field)) throw new IllegalStateException("Field not selected: " + field);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PictureProjection that = (PictureProjection) o;
+        return date == that.date &&
+            Float.compare(that.longitude, longitude) == 0 &&
+            Float.compare(that.latitude, latitude) == 0 &&
+            fields.equals(that.fields) &&
+            Objects.equals(id, that.id) &&
+            Objects.equals(title, that.title) &&
+            Objects.equals(url, that.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fields, id, date, longitude, latitude, title, url);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PictureProjection{");
+        for(PictureQuery.Field field : fields) {
+            if(builder.length() > "PictureProjection{".length()) builder.append(", ");
+            builder.append(field.name().toLowerCase()).append('=');
+            builder.append(field == PictureQuery.Field.DATE ? new Date(date) : value(field));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,278 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Query for pictures, executed by {@link PictureDatasource#query(PictureQuery)}.
+ * The query selects the fields to return, filters the pictures by date range, title prefix and bounding box
+ * and optionally orders and limits the result. All conditions have to be fulfilled.
+ *
+ * <pre>
+ * List&lt;PictureProjection&gt; result = datasource.query(new PictureQuery()
+ *     .select(PictureQuery.Field.ID, PictureQuery.Field.LONGITUDE, PictureQuery.Field.LATITUDE)
+ *     .within(8.0f, 47.0f, 9.0f, 48.0f)
+ *     .orderBy(PictureQuery.Field.DATE, false)
+ *     .limit(10));
+ * </pre>
+ *
+ * The datasource returns {@link PictureProjection}s containing only the selected fields.
+ * The order of the pictures with equal values and of an unordered result is the order of the datasource.
+ */
+public class PictureQuery {
+    /**
+     * Fields of a picture, in the order of the fields of a record in the datafile.
+     */
+    public enum Field { ID, DATE, LONGITUDE, LATITUDE, TITLE, URL }
+
+    private Set<Field> fields = Collections.unmodifiableSet(EnumSet.allOf(Field.class));
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private String titlePrefix;
+    private byte[] titlePrefixBytes;
+    private boolean boundingBox = false;
+    private float minLongitude;
+    private float minLatitude;
+    private float maxLongitude;
+    private float maxLatitude;
+    private int limit = Integer.MAX_VALUE;
+    private Field orderBy;
+    private boolean ascending = true;
+
+    /**
+     * Selects the fields contained in the result, by default all fields are selected.
+     * The field used to order the result is always selected.
+     */
+    public PictureQuery select(Field... fields) {
+        if(fields.length == 0) throw new IllegalArgumentException("At least one field has to be selected");
+        EnumSet<Field> selected = EnumSet.copyOf(Arrays.asList(fields));
+        if(orderBy != null) selected.add(orderBy);
+        this.fields = Collections.unmodifiableSet(selected);
+        return this;
+    }
+
+    /**
+     * Only pictures taken from (inclusive) to (exclusive) the given dates.
+     *
+     * @param from first date of the range, null for no lower bound
+     * @param to   date after the range, null for no upper bound
+     */
+    public PictureQuery dateBetween(Date from, Date to) {
+        this.from = from == null ? Long.MIN_VALUE : from.getTime();
+        this.to = to == null ? Long.MAX_VALUE : to.getTime();
+        return this;
+    }
+
+    /**
+     * Only pictures with a title starting with the given prefix (case sensitive).
+     */
+    public PictureQuery titleStartsWith(String prefix) {
+        titlePrefix = prefix;
+        titlePrefixBytes = prefix == null ? null : prefix.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    /**
+     * Only pictures within the given bounding box, including its borders.
+     */
+    public PictureQuery within(float minLongitude, float minLatitude, float maxLongitude, float maxLatitude) {
+        boundingBox = true;
+        this.minLongitude = minLongitude;
+        this.minLatitude = minLatitude;
+        this.maxLongitude = maxLongitude;
+        this.maxLatitude = maxLatitude;
+        return this;
+    }
+
+    /**
+     * Returns at most the given number of pictures.
+     */
+    public PictureQuery limit(int limit) {
+        if(limit < 0) throw new IllegalArgumentException("Limit must not be negative");
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Orders the result by the given field. Adds the field to the selected fields.
+     */
+    public PictureQuery orderBy(Field field, boolean ascending) {
+        orderBy = field;
+        this.ascending = ascending;
+        if(field != null && !fields.contains(field)) {
+            EnumSet<Field> selected = EnumSet.copyOf(fields);
+            selected.add(field);
+            fields = Collections.unmodifiableSet(selected);
+        }
+        return this;
+    }
+
+    boolean hasBoundingBox() {
+        return boundingBox;
+    }
+
+    float getMinLongitude() {
+        return minLongitude;
+    }
+
+    float getMinLatitude() {
+        return minLatitude;
+    }
+
+    float getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    float getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    /**
+     * @return true if the picture fulfills all conditions
+     */
+    boolean matches(Picture picture) {
+        if(titlePrefix != null && (picture.getTitle() == null || !picture.getTitle().startsWith(titlePrefix))) return false;
+        if(boundingBox && !within(picture.getLongitude(), picture.getLatitude())) return false;
+        long date = picture.getDate().getTime();
+        return date >= from && date < to;
+    }
+
+    /**
+     * Evaluates the conditions on the bytes of a record, without creating any objects.
+     * The cheapest conditions are checked first. The line remains split by the parser,
+     * so a matching line can be passed to {@link #project(PictureRecordParser, byte[])}.
+     *
+     * @return true if the record fulfills all conditions
+     * @throws ParseException if the line is not a valid record
+     */
+    boolean matches(PictureRecordParser parser, byte[] line, int length) throws ParseException {
+        parser.split(line, length);
+        if(titlePrefixBytes != null) {
+            int start = parser.start(Field.TITLE.ordinal());
+            int end = start + titlePrefixBytes.length;
+            if(end > parser.end(Field.TITLE.ordinal())
+                || !Arrays.equals(line, start, end, titlePrefixBytes, 0, titlePrefixBytes.length)) return false;
+        }
+        if(boundingBox && !within(parseFloat(parser, line, Field.LONGITUDE), parseFloat(parser, line, Field.LATITUDE))) {
+            return false;
+        }
+        if(from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+            long date = parser.parseDateMillis(line, parser.start(Field.DATE.ordinal()), parser.end(Field.DATE.ordinal()));
+            return date >= from && date < to;
+        }
+        return true;
+    }
+
+    private boolean within(float longitude, float latitude) {
+        return longitude >= minLongitude && longitude <= maxLongitude
+            && latitude >= minLatitude && latitude <= maxLatitude;
+    }
+
+    PictureProjection project(Picture picture) {
+        return new PictureProjection(fields,
+            fields.contains(Field.ID) ? picture.getId() : null,
+            fields.contains(Field.DATE) ? picture.getDate().getTime() : 0,
+            fields.contains(Field.LONGITUDE) ? picture.getLongitude() : 0,
+            fields.contains(Field.LATITUDE) ? picture.getLatitude() : 0,
+            fields.contains(Field.TITLE) ? picture.getTitle() : null,
+            fields.contains(Field.URL) && picture.getUrl() != null ? picture.getUrl().toString() : null);
+    }
+
+    /**
+     * Creates the projection of a line split by {@link #matches(PictureRecordParser, byte[], int)}.
+     * Only the selected fields are converted.
+     */
+    PictureProjection project(PictureRecordParser parser, byte[] line) throws ParseException {
+        return new PictureProjection(fields,
+            fields.contains(Field.ID) ? string(parser, line, Field.ID) : null,
+            fields.contains(Field.DATE)
+                ? parser.parseDateMillis(line, parser.start(Field.DATE.ordinal()), parser.end(Field.DATE.ordinal())) : 0,
+            fields.contains(Field.LONGITUDE) ? parseFloat(parser, line, Field.LONGITUDE) : 0,
+            fields.contains(Field.LATITUDE) ? parseFloat(parser, line, Field.LATITUDE) : 0,
+            fields.contains(Field.TITLE) ? string(parser, line, Field.TITLE) : null,
+            fields.contains(Field.URL) ? string(parser, line, Field.URL) : null);
+    }
+
+    private static float parseFloat(PictureRecordParser parser, byte[] line, Field field) throws ParseException {
+        return parser.parseFloat(line, parser.start(field.ordinal()), parser.end(field.ordinal()));
+    }
+
+    private static String string(PictureRecordParser parser, byte[] line, Field field) {
+        int start = parser.start(field.ordinal());
+        return new String(line, start, parser.end(field.ordinal()) - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a new collector for the result of this query
+     */
+    ResultCollector collector() {
+        return new ResultCollector();
+    }
+
+    /**
+     * Collects the matching pictures and applies order and limit.
+     * Without order, the collector is full as soon as the limit is reached, so the scan can be stopped.
+     * With order and limit, only the best pictures seen so far are kept.
+     */
+    class ResultCollector {
+        private final List<PictureProjection> unordered = new ArrayList<>();
+        private final PriorityQueue<Entry> ordered;
+        private long sequence = 0;
+
+        private ResultCollector() {
+            ordered = orderBy == null ? null : new PriorityQueue<>(comparator().reversed());
+        }
+
+        /**
+         * Adds a matching picture.
+         *
+         * @return false if no further pictures are needed
+         */
+        boolean add(PictureProjection projection) {
+            if(limit == 0) return false;
+            if(ordered == null) {
+                unordered.add(projection);
+                return unordered.size() < limit;
+            }
+            ordered.add(new Entry(projection, sequence++));
+            if(ordered.size() > limit) ordered.poll();
+            return true;
+        }
+
+        List<PictureProjection> result() {
+            if(ordered == null) return unordered;
+            List<Entry> entries = new ArrayList<>(ordered);
+            entries.sort(comparator());
+            List<PictureProjection> result = new ArrayList<>(entries.size());
+            for(Entry entry : entries) result.add(entry.projection);
+            return result;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Comparator<Entry> comparator() {
+            Comparator<Entry> byValue = Comparator.comparing(entry -> (Comparable) entry.projection.value(orderBy),
+                Comparator.nullsFirst(Comparator.naturalOrder()));
+            if(!ascending) byValue = byValue.reversed();
+            return byValue.thenComparingLong(entry -> entry.sequence);
+        }
+    }
+
+    private static class Entry {
+        private final PictureProjection projection;
+        private final long sequence;
+
+        private Entry(PictureProjection projection, long sequence) {
+            this.projection = projection;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Parses the records of a datafile with the layout "id; yyyy-MM-dd HH:mm:ss; longitude; latitude; title; url"
+ * directly from the bytes of a line.
+ * The fields are located by searching the delimiters in the bytes, date and coordinates are parsed
+ * without creating intermediate Strings. Only the Strings and objects of the resulting picture are created.
+ *
+ * The date is interpreted in the default time zone like {@link SimpleDateFormat} does.
+ * The offset of the time zone is cached for the period between two transitions (e.g. daylight saving time).
+ * Dates which do not have the fixed layout or which fall into a transition are parsed by SimpleDateFormat.
+ *
+ * A parser is not thread safe, each thread has to use its own instance.
+ */
+class PictureRecordParser {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final int DATE_LENGTH = DATE_FORMAT.length();
+    private static final byte[] DELIMITER = "; ".getBytes(CHARSET);
+    private static final int FIELDS = 6;
+    private static final int MAX_DIGITS = 18;
+    // before 1901 java.util.TimeZone (used by SimpleDateFormat) and java.time use different offsets for some zones
+    private static final int MIN_FAST_YEAR = 1901;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final int[] fieldStart = new int[FIELDS];
+    private final int[] fieldEnd = new int[FIELDS];
+
+    private final TimeZone timeZone = TimeZone.getDefault();
+    private final ZoneRules rules = timeZone.toZoneId().getRules();
+    // local epoch seconds in [offsetValidFrom, offsetValidTo) have the unique offset cachedOffset
+    private long offsetValidFrom = 1;
+    private long offsetValidTo = 0;
+    private int cachedOffset;
+    private DateFormat dateFormat;
+
+    private byte[] lastUrl = new byte[0];
+    private URL lastUrlObject;
+
+    /**
+     * Parses a record.
+     *
+     * @param line   buffer containing the line
+     * @param length number of bytes of the line
+     * @return the parsed picture
+     * @throws ParseException        if the line is not a valid record
+     * @throws MalformedURLException if the url of the record is not valid
+     */
+    Picture parse(byte[] line, int length) throws ParseException, MalformedURLException {
+        split(line, length);
+        float longitude = parseFloat(line, fieldStart[2], fieldEnd[2]);
+        float latitude = parseFloat(line, fieldStart[3], fieldEnd[3]);
+        return new Picture(
+            new String(line, 0, fieldEnd[0], CHARSET),
+            url(line, fieldStart[5], fieldEnd[5]),
+            parseDate(line, fieldStart[1], fieldEnd[1]),
+            new String(line, fieldStart[4], fieldEnd[4] - fieldStart[4], CHARSET),
+            longitude,
+            latitude);
+    }
+
+    /**
+     * Determines the positions of the fields. The first four fields end at the first four delimiters,
+     * the url starts after the last delimiter, so the title may contain the delimiter.
+     * The positions are available by {@link #start(int)} and {@link #end(int)} until the next line is split.
+     */
+    void split(byte[] line, int length) throws ParseException {
+        int start = 0;
+        for(int field = 0; field < 4; field++) {
+            int end = indexOf(line, start, length);
+            if(end < 0) throw invalid(line, length);
+            fieldStart[field] = start;
+            fieldEnd[field] = end;
+            start = end + DELIMITER.length;
+        }
+        int urlDelimiter = lastIndexOf(line, start, length);
+        if(urlDelimiter < 0) throw invalid(line, length);
+        fieldStart[4] = start;
+        fieldEnd[4] = urlDelimiter;
+        fieldStart[5] = urlDelimiter + DELIMITER.length;
+        fieldEnd[5] = length;
+    }
+
+    /**
+     * @param field index of the field in the record, 0 for the id to 5 for the url
+     * @return position of the first byte of the field in the line split last
+     */
+    int start(int field) {
+        return fieldStart[field];
+    }
+
+    /**
+     * @param field index of the field in the record, 0 for the id to 5 for the url
+     * @return position after the last byte of the field in the line split last
+     */
+    int end(int field) {
+        return fieldEnd[field];
+    }
+
+    private static int indexOf(byte[] line, int from, int to) {
+        for(int i = from; i <= to - DELIMITER.length; i++) {
+            if(line[i] == DELIMITER[0] && line[i + 1] == DELIMITER[1]) return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] line, int from, int to) {
+        for(int i = to - DELIMITER.length; i >= from; i--) {
+            if(line[i] == DELIMITER[0] && line[i + 1] == DELIMITER[1]) return i;
+        }
+        return -1;
+    }
+
+    private static ParseException invalid(byte[] line, int length) {
+        return new ParseException("Invalid record: " + new String(line, 0, length, CHARSET), 0);
+    }
+
+    /**
+     * Returns the url, reusing the URL object of the previous record if the url is the same.
+     */
+    private URL url(byte[] line, int from, int to) throws MalformedURLException {
+        if(lastUrlObject == null || !Arrays.equals(line, from, to, lastUrl, 0, lastUrl.length)) {
+            lastUrl = Arrays.copyOfRange(line, from, to);
+            lastUrlObject = new URL(new String(lastUrl, CHARSET));
+        }
+        return lastUrlObject;
+    }
+
+    /**
+     * Parses a date with the layout "yyyy-MM-dd HH:mm:ss" in the default time zone.
+     */
+    Date parseDate(byte[] line, int from, int to) throws ParseException {
+        return new Date(parseDateMillis(line, from, to));
+    }
+
+    /**
+     * Parses a date like {@link #parseDate(byte[], int, int)} without creating a Date.
+     *
+     * @return milliseconds since 1970-01-01 00:00:00 UTC
+     */
+    long parseDateMillis(byte[] line, int from, int to) throws ParseException {
+        if(to - from == DATE_LENGTH
+            && line[from + 4] == '-' && line[from + 7] == '-' && line[from + 10] == ' '
+            && line[from + 13] == ':' && line[from + 16] == ':') {
+            int year = digits(line, from, 4);
+            int month = digits(line, from + 5, 2);
+            int day = digits(line, from + 8, 2);
+            int hour = digits(line, from + 11, 2);
+            int minute = digits(line, from + 14, 2);
+            int second = digits(line, from + 17, 2);
+            if(year >= MIN_FAST_YEAR && month >= 1 && month <= 12 && day >= 1 && day <= 31
+                && hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59) {
+                long local = daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second;
+                if(local < offsetValidFrom || local >= offsetValidTo) cacheOffset(local);
+                if(local >= offsetValidFrom && local < offsetValidTo) {
+                    return (local - cachedOffset) * 1000;
+                }
+            }
+        }
+        // not the fixed layout, out of range (handled leniently) or in a transition of the time zone
+        if(dateFormat == null) dateFormat = new SimpleDateFormat(DATE_FORMAT);
+        return dateFormat.parse(new String(line, from, to - from, CHARSET)).getTime();
+    }
+
+    /**
+     * Determines the offset of the time zone for the given local time and the period around it
+     * in which the offset does not change. Does not cache anything, if the local time is in a gap or an overlap.
+     */
+    private void cacheOffset(long local) {
+        LocalDateTime dateTime = LocalDateTime.ofEpochSecond(local, 0, ZoneOffset.UTC);
+        List<ZoneOffset> offsets = rules.getValidOffsets(dateTime);
+        if(offsets.size() != 1) return;
+        ZoneOffset offset = offsets.get(0);
+        Instant instant = dateTime.toInstant(offset);
+        if(timeZone.getOffset(instant.toEpochMilli()) != offset.getTotalSeconds() * 1000) return;
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusSeconds(1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        offsetValidFrom = previous == null ? Long.MIN_VALUE
+            : toLocalSeconds(max(previous.getDateTimeBefore(), previous.getDateTimeAfter()));
+        offsetValidTo = next == null ? Long.MAX_VALUE
+            : toLocalSeconds(min(next.getDateTimeBefore(), next.getDateTimeAfter()));
+        cachedOffset = offset.getTotalSeconds();
+    }
+
+    private static long toLocalSeconds(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static LocalDateTime max(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static LocalDateTime min(LocalDateTime a, LocalDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    /**
+     * @return value of the decimal digits or -1 if one of the bytes is not a digit
+     */
+    private static int digits(byte[] line, int from, int count) {
+        int value = 0;
+        for(int i = from; i < from + count; i++) {
+            int digit = line[i] - '0';
+            if(digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Parses a float in the format written by {@link Float#toString(float)}, e.g. "-12.5" or "1.0E-5".
+     * Up to 18 significant digits and a decimal exponent up to 22 are computed exactly as double,
+     * which is then rounded to float. If the double lies exactly in the middle between two floats,
+     * rounding twice could be wrong, so these values and all other formats are parsed by {@link Float#parseFloat(String)}.
+     */
+    float parseFloat(byte[] line, int from, int to) throws ParseException {
+        int i = from;
+        boolean negative = i < to && line[i] == '-';
+        if(negative) i++;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean exact = true;
+        for(; i < to && line[i] >= '0' && line[i] <= '9'; i++) {
+            anyDigit = true;
+            if(mantissa != 0 || line[i] != '0') digits++;
+            mantissa = mantissa * 10 + (line[i] - '0');
+            if(digits > MAX_DIGITS) exact = false;
+        }
+        if(i < to && line[i] == '.') {
+            for(i++; i < to && line[i] >= '0' && line[i] <= '9'; i++) {
+                anyDigit = true;
+                if(mantissa != 0 || line[i] != '0') digits++;
+                mantissa = mantissa * 10 + (line[i] - '0');
+                exponent--;
+                if(digits > MAX_DIGITS) exact = false;
+            }
+        }
+        if(anyDigit && i < to && (line[i] == 'E' || line[i] == 'e')) {
+            i++;
+            boolean negativeExponent = i < to && line[i] == '-';
+            if(negativeExponent || (i < to && line[i] == '+')) i++;
+            int value = 0;
+            boolean exponentDigit = false;
+            for(; i < to && line[i] >= '0' && line[i] <= '9' && value < 10000; i++) {
+                exponentDigit = true;
+                value = value * 10 + (line[i] - '0');
+            }
+            if(!exponentDigit) exact = false;
+            exponent += negativeExponent ? -value : value;
+        }
+        if(exact && anyDigit && i == to && mantissa < (1L << 53) && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            if(value == 0 || (value >= Float.MIN_NORMAL && value <= Float.MAX_VALUE && !isFloatMidpoint(value))) {
+                float result = (float) value;
+                return negative ? -result : result;
+            }
+        }
+        String text = new String(line, from, to - from, CHARSET);
+        try {
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number: " + text, from);
+        }
+    }
+
+    /**
+     * @return true if the (normal) double lies exactly in the middle between two adjacent floats
+     */
+    private static boolean isFloatMidpoint(double value) {
+        // a float has 29 bits less precision than a double
+        return (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L;
+    }
+}
@@ -0,0 +1,64 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequential access to the lines (records) of a datafile.
+ * Besides the line content, the cursor provides the byte offset of each line,
+ * which is used as record address by the indexes.
+ */
+interface RecordCursor extends Closeable {
+    /**
+     * Moves the cursor to the next line.
+     *
+     * @return true if a line has been read, false if the end is reached
+     * @throws IOException if reading fails
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return byte offset of the current line within the file
+     */
+    long offset();
+
+    /**
+     * @return number of bytes of the current line (without line terminator)
+     */
+    int length();
+
+    /**
+     * Returns a buffer containing the bytes of the current line. Only the first {@link #length()} bytes are valid.
+     * The buffer is reused for the following lines.
+     *
+     * @return buffer containing the current line
+     */
+    byte[] bytes();
+
+    /**
+     * @return the current line decoded as String
+     */
+    String line();
+
+    /**
+     * @return true if the current line ends with the given bytes
+     */
+    boolean endsWith(byte[] suffix);
+
+    /**
+     * Returns the first field of the current line, which is the id of the record.
+     *
+     * @param delimiter field delimiter
+     * @return id of the current record
+     */
+    String id(String delimiter);
+
+    /**
+     * Returns the field with the given index of the current line.
+     *
+     * @param index     index of the field (0 = id)
+     * @param delimiter field delimiter
+     * @return the field or null if the line has less fields
+     */
+    String field(int index, String delimiter);
+}
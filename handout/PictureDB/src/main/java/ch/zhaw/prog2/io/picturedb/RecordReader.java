@@ -0,0 +1,195 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a datafile line by line on byte level and keeps track of the byte offset
+ * at which each line starts. The offsets can be used to access a record directly
+ * (see {@link #readAt(FileChannel, long)}).
+ * Lines are terminated by '\n', a trailing '\r' is removed.
+ */
+class RecordReader implements RecordCursor {
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLimit = 0;
+    private long position = 0;
+
+    private byte[] line = new byte[256];
+    private int length = 0;
+    private long offset = -1;
+
+    /**
+     * Creates a RecordReader starting at the beginning of the given file.
+     *
+     * @param file datafile to read
+     * @throws IOException if the file can not be opened
+     */
+    RecordReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    RecordReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line into the internal line buffer.
+     *
+     * @return true if a line has been read, false if the end of the file is reached
+     * @throws IOException if reading fails
+     */
+    @Override
+    public boolean next() throws IOException {
+        length = 0;
+        offset = position;
+        boolean read = false;
+        while (true) {
+            if (bufferPos == bufferLimit) {
+                bufferLimit = in.read(buffer);
+                bufferPos = 0;
+                if (bufferLimit <= 0) {
+                    bufferLimit = 0;
+                    break;
+                }
+            }
+            read = true;
+            int start = bufferPos;
+            while (bufferPos < bufferLimit && buffer[bufferPos] != '\n') {
+                bufferPos++;
+            }
+            append(buffer, start, bufferPos - start);
+            position += bufferPos - start;
+            if (bufferPos < bufferLimit) {
+                // skip '\n'
+                bufferPos++;
+                position++;
+                break;
+            }
+        }
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return read;
+    }
+
+    private void append(byte[] src, int start, int len) {
+        if (length + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, length + len));
+        }
+        System.arraycopy(src, start, line, length, len);
+        length += len;
+    }
+
+    @Override
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * @return byte offset directly after the current line (including the line terminator)
+     */
+    long position() {
+        return position;
+    }
+
+    @Override
+    public byte[] bytes() {
+        return line;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String line() {
+        return new String(line, 0, length, CHARSET);
+    }
+
+    @Override
+    public String id(String delimiter) {
+        return new String(line, 0, indexOf(line, 0, length, delimiter.getBytes(CHARSET)), CHARSET);
+    }
+
+    @Override
+    public boolean endsWith(byte[] suffix) {
+        if (suffix.length > length) return false;
+        for (int i = 0; i < suffix.length; i++) {
+            if (line[length - suffix.length + i] != suffix[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String field(int index, String delimiter) {
+        byte[] pattern = delimiter.getBytes(CHARSET);
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            int end = indexOf(line, start, length, pattern);
+            if (end == length) return null;
+            start = end + pattern.length;
+        }
+        return new String(line, start, indexOf(line, start, length, pattern) - start, CHARSET);
+    }
+
+    /**
+     * Searches the given pattern in the byte range [from, to) of the buffer.
+     *
+     * @return position of the pattern or to if the pattern is not contained in the range
+     */
+    static int indexOf(byte[] bytes, int from, int to, byte[] pattern) {
+        for (int i = from; i <= to - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) j++;
+            if (j == pattern.length) return i;
+        }
+        return to;
+    }
+
+    /**
+     * Reads the line starting at the given offset using positioned reads,
+     * i.e. the position of the channel is not modified.
+     *
+     * @param channel channel of the datafile
+     * @param offset  byte offset of the line
+     * @return bytes of the line (without line terminator)
+     * @throws IOException if reading fails
+     */
+    static byte[] readAt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        byte[] result = new byte[0];
+        long pos = offset;
+        int length = 0;
+        while (true) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n <= 0) break;
+            byte[] chunk = buf.array();
+            int end = 0;
+            while (end < n && chunk[end] != '\n') end++;
+            result = Arrays.copyOf(result, length + end);
+            System.arraycopy(chunk, 0, result, length, end);
+            length += end;
+            if (end < n) break;
+            pos += n;
+        }
+        if (length > 0 && result[length - 1] == '\r') length--;
+        return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
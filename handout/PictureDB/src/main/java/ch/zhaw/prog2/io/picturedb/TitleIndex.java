@@ -0,0 +1,232 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index over the words of the titles.
+ * For each word (see {@link #tokenize(String)}) it holds the posting list of the byte offsets
+ * of all records whose title contains the word. Records are added in the order of the datafile,
+ * so the posting lists are sorted ascending and can be intersected or merged in a single pass.
+ *
+ * Like {@link GridIndex}, the index can be stored in a sidecar file next to the datafile,
+ * which contains the length and modification time of the datafile it was built from.
+ * The posting lists are stored as differences between consecutive offsets in a variable length encoding.
+ */
+class TitleIndex {
+    private static final int MAGIC = 0x5449544C; // "TITL"
+
+    private final Map<String, OffsetList> postings = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Splits a text into words: sequences of letters and digits, converted to lower case.
+     *
+     * @param text text to split, may be null
+     * @return the distinct words in the order of their first occurrence
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        if (text == null) return words;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Adds a record to the index. Its offset has to be greater than the offsets of all records added before.
+     *
+     * @param title  title of the record
+     * @param offset byte offset of the record in the datafile
+     */
+    void add(String title, long offset) {
+        for (String word : tokenize(title)) {
+            postings.computeIfAbsent(word, k -> new OffsetList()).add(offset);
+        }
+        size++;
+    }
+
+    /**
+     * Returns the offsets of the records containing all or any of the given words,
+     * sorted ascending (i.e. in the order of the datafile).
+     *
+     * @param words    words to search, as returned by {@link #tokenize(String)}
+     * @param matchAll true if a record has to contain all words, false if it has to contain any of them
+     */
+    long[] find(Collection<String> words, boolean matchAll) {
+        List<OffsetList> lists = new ArrayList<>(words.size());
+        for (String word : words) {
+            OffsetList list = postings.get(word);
+            if (list != null) lists.add(list);
+            else if (matchAll) return new long[0];
+        }
+        if (lists.isEmpty()) return new long[0];
+        if (matchAll) {
+            // start with the shortest list, so the intermediate result is as small as possible
+            lists.sort(Comparator.comparingInt(OffsetList::size));
+            long[] result = lists.get(0).toArray();
+            for (int i = 1; i < lists.size() && result.length > 0; i++) {
+                result = intersect(result, lists.get(i));
+            }
+            return result;
+        }
+        long[] result = lists.get(0).toArray();
+        for (int i = 1; i < lists.size(); i++) {
+            result = union(result, lists.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the offsets which are contained in the list. The list is searched by exponential search
+     * starting at the last match, so a short result is intersected with a long list in logarithmic time per offset.
+     */
+    private static long[] intersect(long[] offsets, OffsetList list) {
+        int count = 0;
+        int position = 0;
+        for (long offset : offsets) {
+            int step = 1;
+            int high = position;
+            while (high < list.size() && list.get(high) < offset) {
+                position = high + 1;
+                high = position + step;
+                step *= 2;
+            }
+            position = lowerBound(list, position, Math.min(high, list.size()), offset);
+            if (position == list.size()) break;
+            if (list.get(position) == offset) offsets[count++] = offset;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private static int lowerBound(OffsetList list, int low, int high, long offset) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (list.get(middle) < offset) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private static long[] union(long[] offsets, OffsetList list) {
+        long[] result = new long[offsets.length + list.size()];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < offsets.length || j < list.size()) {
+            long next;
+            if (j == list.size() || (i < offsets.length && offsets[i] <= list.get(j))) {
+                next = offsets[i++];
+                if (j < list.size() && list.get(j) == next) j++;
+            } else {
+                next = list.get(j++);
+            }
+            result[count++] = next;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return number of indexed records
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the index to the given sidecar file.
+     *
+     * @param sidecar      file to write the index to
+     * @param dataLength   length of the datafile the index belongs to
+     * @param dataModified modification time of the datafile the index belongs to
+     */
+    void save(File sidecar, long dataLength, long dataModified) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(dataLength);
+            out.writeLong(dataModified);
+            out.writeInt(size);
+            out.writeInt(postings.size());
+            for (Map.Entry<String, OffsetList> entry : postings.entrySet()) {
+                OffsetList offsets = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(offsets.size());
+                long previous = 0;
+                for (int i = 0; i < offsets.size(); i++) {
+                    writeVarLong(out, offsets.get(i) - previous);
+                    previous = offsets.get(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the index from the given sidecar file.
+     *
+     * @return the index or null if the sidecar does not exist or does not match the datafile
+     */
+    static TitleIndex load(File sidecar, long dataLength, long dataModified) throws IOException {
+        if (!sidecar.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readLong() != dataLength || in.readLong() != dataModified) {
+                return null;
+            }
+            TitleIndex index = new TitleIndex();
+            index.size = in.readInt();
+            int wordCount = in.readInt();
+            for (int w = 0; w < wordCount; w++) {
+                String word = in.readUTF();
+                int count = in.readInt();
+                OffsetList offsets = new OffsetList();
+                long offset = 0;
+                for (int i = 0; i < count; i++) {
+                    offset += readVarLong(in);
+                    offsets.add(offset);
+                }
+                index.postings.put(word, offsets);
+            }
+            return index;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
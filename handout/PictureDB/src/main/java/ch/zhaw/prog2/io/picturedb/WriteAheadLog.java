@@ -0,0 +1,358 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the appends to a datafile.
+ * Before bytes are appended to the datafile, they are written to the log together with their offset.
+ * The datafile itself is not forced to disk on each append, only the log is.
+ *
+ * Group commit: {@link #awaitDurable(long)} forces the log at most once per commit interval.
+ * The first waiting thread forces the log for all entries written so far,
+ * the other threads wait until their entry is covered by a force.
+ *
+ * A checkpoint forces the datafile and empties the log. If the log still contains entries
+ * when the datafile is opened (i.e. the application crashed), the entries are written again
+ * to the datafile (see {@link #recover(File)}). Bytes after the last complete entry have not been committed
+ * and are removed from the datafile. A log which does not belong to the datafile is not replayed.
+ *
+ * File layout:
+ * <pre>
+ * header: int magic "PWL2", long length and long modification time (ns) of the datafile at the last checkpoint,
+ *         int CRC32 of the last 64 KB of the datafile before that length
+ * entry:  int length of the data, long offset in the datafile, data, int CRC32 of offset and data
+ * </pre>
+ */
+class WriteAheadLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(PictureDatasource.class.getPackageName());
+
+    private static final int MAGIC = 0x50574C32; // "PWL2"
+    private static final int HEADER_SIZE = 24;
+    private static final int TAIL_SIZE = 64 * 1024;
+    private static final int ENTRY_OVERHEAD = 16;
+
+    private final File logFile;
+    private FileChannel channel;
+    private volatile long commitInterval;
+
+    private long sequence = 0;
+    private long durableSequence = 0;
+    private boolean forcing = false;
+    private long lastForce = 0;
+
+    /**
+     * @param logFile        file of the log, usually "&lt;datafile&gt;.wal"
+     * @param commitInterval minimal time between two forces of the log in milliseconds
+     */
+    WriteAheadLog(File logFile, long commitInterval) {
+        this.logFile = logFile;
+        setCommitInterval(commitInterval);
+    }
+
+    void setCommitInterval(long commitInterval) {
+        if(commitInterval < 0) throw new IllegalArgumentException("Commit interval must not be negative");
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Brings the datafile to the state of the last committed entry of the log and starts a new log.
+     * If the log is missing or empty, the datafile is not modified.
+     *
+     * The log is only replayed if it belongs to the datafile: the datafile has to be at least as long as at
+     * the checkpoint, with the same checksum of its last bytes before that length and, if nothing has been
+     * appended since, the same modification time. The bytes already written for the logged appends have to match
+     * the log (or be zero, if they did not reach the disk). Otherwise the datafile has been replaced or modified
+     * by someone else, it is left unchanged and the log is kept as "&lt;log&gt;.rejected".
+     *
+     * @param datafile datafile belonging to the log
+     * @return number of entries written again to the datafile
+     * @throws IOException if the log or the datafile can not be accessed
+     */
+    synchronized int recover(File datafile) throws IOException {
+        int replayed = 0;
+        if(logFile.length() > HEADER_SIZE) {
+            String mismatch;
+            try(FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+                FileChannel data = FileChannel.open(datafile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                mismatch = verify(log, data, datafile);
+                if(mismatch == null) {
+                    long end = replay(log, data);
+                    if(data.size() > end) data.truncate(end);
+                    data.force(true);
+                    replayed = countEntries(log);
+                }
+            }
+            if(mismatch != null) {
+                File rejected = new File(logFile.getPath() + ".rejected");
+                Files.move(logFile.toPath(), rejected.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                LOGGER.log(Level.WARNING, "Write-ahead log does not belong to datafile {0} ({1}), not replayed and kept as {2}",
+                    new Object[]{datafile, mismatch, rejected});
+            } else {
+                LOGGER.log(Level.WARNING, "Recovered datafile {0} from write-ahead log, {1} entries replayed",
+                    new Object[]{datafile, replayed});
+            }
+        }
+        reset(datafile);
+        return replayed;
+    }
+
+    /**
+     * Checks that the log has been written against the datafile.
+     *
+     * @return reason why the log does not belong to the datafile or null if it does
+     */
+    private String verify(FileChannel log, FileChannel data, File datafile) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        log.read(header, 0);
+        header.flip();
+        if(header.getInt() != MAGIC) return "unknown log format";
+        long checkpointLength = header.getLong();
+        long checkpointModified = header.getLong();
+        int checkpointChecksum = header.getInt();
+        long size = data.size();
+        if(size < checkpointLength) return "datafile is shorter than at the checkpoint";
+        if(tailChecksum(data, checkpointLength) != checkpointChecksum) return "content differs from the checkpoint";
+        if(size == checkpointLength && modified(datafile) != checkpointModified) return "datafile modified since the checkpoint";
+        long end = checkpointLength;
+        long position = HEADER_SIZE;
+        ByteBuffer entry;
+        while((entry = readEntry(log, position)) != null) {
+            long offset = entry.getLong();
+            if(offset < checkpointLength) return "entry before the checkpoint";
+            ByteBuffer written = ByteBuffer.allocate((int) Math.max(0, Math.min(entry.remaining(), size - offset)));
+            while(written.hasRemaining()) {
+                if(data.read(written, offset + written.position()) < 0) break;
+            }
+            for(int i = 0; i < written.position(); i++) {
+                byte b = written.get(i);
+                if(b != 0 && b != entry.get(entry.position() + i)) return "appended bytes differ from the log";
+            }
+            end = offset + entry.remaining();
+            position += ENTRY_OVERHEAD + entry.remaining();
+        }
+        if(size > end) {
+            // the rest of an append without committed entry is an incomplete line, complete lines have been added by someone else
+            if(size - end > TAIL_SIZE) return "datafile is longer than the log";
+            ByteBuffer rest = ByteBuffer.allocate((int) (size - end));
+            while(rest.hasRemaining()) {
+                if(data.read(rest, end + rest.position()) < 0) break;
+            }
+            for(int i = 0; i < rest.position(); i++) {
+                if(rest.get(i) == '\n') return "datafile is longer than the log";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the entries of the log to the datafile.
+     *
+     * @return end of the last entry in the datafile
+     */
+    private static long replay(FileChannel log, FileChannel data) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        log.read(header, 0);
+        long end = header.getLong(4);
+        long position = HEADER_SIZE;
+        ByteBuffer entry;
+        while((entry = readEntry(log, position)) != null) {
+            long offset = entry.getLong();
+            while(entry.hasRemaining()) {
+                data.write(entry, offset + entry.position() - 8);
+            }
+            end = offset + entry.limit() - 8;
+            position += ENTRY_OVERHEAD + entry.limit() - 8;
+        }
+        return end;
+    }
+
+    private static int countEntries(FileChannel log) throws IOException {
+        int entries = 0;
+        long position = HEADER_SIZE;
+        ByteBuffer entry;
+        while((entry = readEntry(log, position)) != null) {
+            position += ENTRY_OVERHEAD + entry.limit() - 8;
+            entries++;
+        }
+        return entries;
+    }
+
+    /**
+     * @return CRC32 of the last bytes (at most {@value #TAIL_SIZE}) before the given length of the datafile
+     */
+    private static int tailChecksum(FileChannel data, long length) throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(length, TAIL_SIZE));
+        long start = length - tail.capacity();
+        while(tail.hasRemaining()) {
+            if(data.read(tail, start + tail.position()) < 0) break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tail.array(), 0, tail.position());
+        return (int) crc.getValue();
+    }
+
+    private static long modified(File datafile) throws IOException {
+        return Files.getLastModifiedTime(datafile.toPath()).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads the entry at the given position.
+     *
+     * @return buffer with offset and data of the entry or null if the entry is incomplete or corrupt
+     */
+    private static ByteBuffer readEntry(FileChannel log, long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        if(log.read(length, position) < 4) return null;
+        int dataLength = length.getInt(0);
+        if(dataLength < 0 || position + ENTRY_OVERHEAD + dataLength > log.size()) return null;
+        ByteBuffer entry = ByteBuffer.allocate(8 + dataLength + 4);
+        while(entry.hasRemaining()) {
+            if(log.read(entry, position + 4 + entry.position()) < 0) return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, 8 + dataLength);
+        if((int) crc.getValue() != entry.getInt(8 + dataLength)) return null;
+        entry.position(0).limit(8 + dataLength);
+        return entry;
+    }
+
+    /**
+     * Writes an entry for bytes which are appended to the datafile. The entry is not forced to disk.
+     *
+     * @param offset offset of the bytes in the datafile
+     * @param data   bytes appended to the datafile
+     * @return sequence number of the entry, to be passed to {@link #awaitDurable(long)}
+     */
+    synchronized long log(long offset, byte[] data) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_OVERHEAD + data.length);
+        entry.putInt(data.length).putLong(offset).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 4, 8 + data.length);
+        entry.putInt((int) crc.getValue());
+        entry.flip();
+        FileChannel log = channel();
+        long position = log.size();
+        while(entry.hasRemaining()) {
+            log.write(entry, position + entry.position());
+        }
+        return ++sequence;
+    }
+
+    /**
+     * @return sequence number of the last entry written
+     */
+    synchronized long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return size of the log in bytes
+     */
+    synchronized long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Waits until the entry with the given sequence number is forced to disk.
+     * If no other thread is forcing the log, the calling thread forces it for all entries written so far,
+     * after the commit interval since the last force has elapsed.
+     *
+     * @param sequence sequence number of the entry
+     * @throws IOException if the log can not be forced
+     */
+    void awaitDurable(long sequence) throws IOException {
+        long target = 0;
+        FileChannel log;
+        synchronized(this) {
+            while(durableSequence < sequence && forcing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for commit");
+                }
+            }
+            if(durableSequence >= sequence) return;
+            forcing = true;
+        }
+        boolean forced = false;
+        try {
+            long delay = lastForce + commitInterval - System.currentTimeMillis();
+            if(delay > 0) {
+                // collect the entries of other threads which are written in the meantime
+                Thread.sleep(delay);
+            }
+            synchronized(this) {
+                target = this.sequence;
+                log = channel();
+            }
+            log.force(false);
+            forced = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for commit");
+        } finally {
+            synchronized(this) {
+                forcing = false;
+                if(forced) {
+                    durableSequence = Math.max(durableSequence, target);
+                    lastForce = System.currentTimeMillis();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Empties the log. All entries written so far are considered durable,
+     * so the datafile has to be forced to disk before.
+     * The header identifies the state of the datafile, see {@link #recover(File)}.
+     *
+     * @param datafile datafile belonging to the log
+     */
+    synchronized void reset(File datafile) throws IOException {
+        long dataLength;
+        int checksum;
+        try(FileChannel data = FileChannel.open(datafile.toPath(), StandardOpenOption.READ)) {
+            dataLength = data.size();
+            checksum = tailChecksum(data, dataLength);
+        }
+        FileChannel log = channel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(dataLength)
+            .putLong(modified(datafile)).putInt(checksum);
+        header.flip();
+        log.write(header, 0);
+        log.truncate(HEADER_SIZE);
+        log.force(true);
+        durableSequence = sequence;
+        notifyAll();
+    }
+
+    private FileChannel channel() throws IOException {
+        if(channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(logFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static ch.zhaw.prog2.io.picturedb.TestFiles.createEmptyFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncPictureDatasourceTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+
+    @Test
+    void testReadsAndWrites() throws IOException, ParseException, InterruptedException, ExecutionException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testAsync.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture picture = new Picture("1", url, date, "Aaron", 20.0f, 30.0f);
+
+        AsyncPictureDatasource datasource = new AsyncPictureDatasource(new FilePictureDatasource(filepath), 2);
+        datasource.insert(picture).get();
+        assertEquals(picture, datasource.findById("1").get());
+        assertEquals(1, (int) datasource.count().get());
+
+        // failures complete the future exceptionally
+        ExecutionException notFound = assertThrows(ExecutionException.class, () -> datasource.findById("2").get());
+        assertTrue(notFound.getCause() instanceof RecordNotFoundException);
+        notFound = assertThrows(ExecutionException.class,
+            () -> datasource.update(new Picture("2", url, date, "Missing", 0, 0)).get());
+        assertTrue(notFound.getCause() instanceof RecordNotFoundException);
+
+        CompletableFuture<Void> delete = datasource.delete(picture);
+        datasource.close();
+        assertTrue(delete.isDone());
+        assertEquals(0, new FilePictureDatasource(filepath).count());
+        ExecutionException closed = assertThrows(ExecutionException.class, () -> datasource.insert(picture).get());
+        assertTrue(closed.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testCoalescedWrites() throws IOException, ParseException, InterruptedException, ExecutionException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testAsyncBatch.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FilePictureDatasource file = new FilePictureDatasource(filepath) {
+            @Override
+            public void insertAll(Collection<Picture> pictures) throws IOException {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.insertAll(pictures);
+            }
+        };
+        AsyncPictureDatasource datasource = new AsyncPictureDatasource(file, 2);
+
+        // the writer is blocked by the first insert, the following inserts are queued meanwhile
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(datasource.insert(new Picture("0", url, date, "Picture 0", 0, 0)));
+        blocked.await();
+        for(int i = 1; i <= 10; i++) {
+            futures.add(datasource.insert(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i)));
+        }
+        futures.add(datasource.update(new Picture("3", url, date, "Updated", 3, 3)));
+        futures.add(datasource.update(new Picture("99", url, date, "Missing", 0, 0)));
+        futures.add(datasource.update(new Picture("4", url, date, "Updated", 4, 4)));
+        release.countDown();
+
+        for(int i = 0; i < 12; i++) {
+            futures.get(i).get();
+        }
+        ExecutionException notFound = assertThrows(ExecutionException.class, () -> futures.get(12).get());
+        assertTrue(notFound.getCause() instanceof RecordNotFoundException);
+        futures.get(13).get();
+        // first insert, batch of inserts, batch of updates and the updates one by one
+        assertEquals(6, datasource.getBatchCount());
+        assertEquals(11, (int) datasource.count().get());
+        assertEquals("Updated", datasource.findById("4").get().getTitle());
+        assertEquals("Updated", datasource.findById("3").get().getTitle());
+        datasource.close();
+    }
+
+    @Test
+    void testWritesOfNonAtomicDatasource() throws IOException, ParseException, InterruptedException, ExecutionException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testAsyncNonAtomic.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FilePictureDatasource file = new FilePictureDatasource(filepath) {
+            @Override
+            public boolean hasAtomicBatches() {
+                return false;
+            }
+
+            @Override
+            public void insertAll(Collection<Picture> pictures) throws IOException {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.insertAll(pictures);
+            }
+        };
+        AsyncPictureDatasource datasource = new AsyncPictureDatasource(file, 2);
+
+        // the deletes are queued while the writer is blocked, but not coalesced, as a failing batch could be applied partially
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<Picture> pictures = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            pictures.add(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i));
+        }
+        futures.add(datasource.insertAll(pictures));
+        blocked.await();
+        futures.add(datasource.delete(pictures.get(0)));
+        futures.add(datasource.delete(new Picture("99", url, date, "Missing", 0, 0)));
+        futures.add(datasource.delete(pictures.get(1)));
+        release.countDown();
+
+        futures.get(0).get();
+        futures.get(1).get();
+        ExecutionException notFound = assertThrows(ExecutionException.class, () -> futures.get(2).get());
+        assertTrue(notFound.getCause() instanceof RecordNotFoundException);
+        futures.get(3).get();
+        assertEquals(4, datasource.getBatchCount());
+        assertEquals(1, (int) datasource.count().get());
+        datasource.close();
+    }
+
+    @Test
+    void testErrorWhileClosing() throws IOException, ParseException, InterruptedException, ExecutionException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testAsyncError.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FilePictureDatasource file = new FilePictureDatasource(filepath) {
+            @Override
+            public void insertAll(Collection<Picture> pictures) throws IOException {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new AssertionError("Broken datasource");
+            }
+        };
+        AsyncPictureDatasource datasource = new AsyncPictureDatasource(file, 2);
+        CompletableFuture<Void> failing = datasource.insert(new Picture("0", url, date, "Picture 0", 0, 0));
+        blocked.await();
+        CompletableFuture<Void> queued = datasource.delete(new Picture("0", url, date, "Picture 0", 0, 0));
+
+        // the Error is thrown after close has shut down the writer, so the queued delete can not be executed anymore
+        Thread closer = new Thread(() -> {
+            try {
+                datasource.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        closer.start();
+        while(closer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        closer.join();
+
+        ExecutionException error = assertThrows(ExecutionException.class, failing::get);
+        assertTrue(error.getCause() instanceof AssertionError);
+        ExecutionException notExecuted = assertThrows(ExecutionException.class, queued::get);
+        assertTrue(notExecuted.getCause() instanceof IllegalStateException);
+        assertTrue(notExecuted.getCause().getCause() instanceof AssertionError);
+    }
+}
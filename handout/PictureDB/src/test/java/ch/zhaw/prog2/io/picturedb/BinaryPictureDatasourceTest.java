@@ -0,0 +1,127 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import static ch.zhaw.prog2.io.picturedb.TestFiles.createEmptyFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryPictureDatasourceTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+
+    @Test
+    void testInsertUpdateDelete() throws IOException, ParseException, RecordNotFoundException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testBinary.bin");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture first = new Picture("1", url, date, "Aaron", 20.0f, 30.0f);
+        Picture second = new Picture("2", url, date, "Süsser Hund", 21.0f, 20.0f);
+        Picture sameSize = new Picture("1", url, date, "Baron", 20.0f, 30.0f);
+        Picture larger = new Picture("1", url, date, "Aaron the second", 20.0f, 30.0f);
+
+        try(BinaryPictureDatasource datasource = new BinaryPictureDatasource(filepath)) {
+            datasource.insert(first);
+            datasource.insert(second);
+            assertEquals(2, datasource.count());
+            assertEquals(second, datasource.findById("2"));
+
+            datasource.update(sameSize);
+            assertEquals(sameSize, datasource.findById("1"));
+            datasource.update(larger);
+            assertEquals(larger, datasource.findById("1"));
+
+            datasource.delete(second);
+            assertThrows(RecordNotFoundException.class, () -> datasource.findById("2"));
+            assertThrows(RecordNotFoundException.class, () -> datasource.delete(second));
+            assertThrows(RecordNotFoundException.class, () -> datasource.update(second));
+            assertEquals(1, datasource.count());
+        }
+
+        try(BinaryPictureDatasource reopened = new BinaryPictureDatasource(filepath)) {
+            ArrayList<Picture> expected = new ArrayList<>();
+            expected.add(larger);
+            assertEquals(expected, reopened.findAll());
+            assertEquals(expected, reopened.findByPosition(20.0f, 30.0f, 1.0f));
+            assertEquals(new ArrayList<Picture>(), reopened.findByPosition(21.0f, 20.0f, 1.0f));
+        }
+    }
+
+    @Test
+    void testIncompleteRecord() throws IOException, ParseException, RecordNotFoundException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testBinaryTorn.bin");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture first = new Picture("1", url, date, "Aaron", 20.0f, 30.0f);
+        Picture second = new Picture("2", url, date, "Süsser Hund", 21.0f, 20.0f);
+        try(BinaryPictureDatasource datasource = new BinaryPictureDatasource(filepath)) {
+            datasource.insert(first);
+        }
+        long size = new File(filepath).length();
+
+        // length field cut off
+        try(FileOutputStream out = new FileOutputStream(filepath, true)) {
+            out.write(new byte[]{0, 0});
+        }
+        try(BinaryPictureDatasource reopened = new BinaryPictureDatasource(filepath)) {
+            assertEquals(1, reopened.count());
+            assertEquals(size, new File(filepath).length());
+        }
+
+        // length beyond the end of the file
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(filepath, true))) {
+            out.writeInt(100);
+            out.write(new byte[30]);
+        }
+        try(BinaryPictureDatasource reopened = new BinaryPictureDatasource(filepath)) {
+            assertEquals(1, reopened.count());
+            assertEquals(size, new File(filepath).length());
+            reopened.insert(second);
+        }
+        try(BinaryPictureDatasource reopened = new BinaryPictureDatasource(filepath)) {
+            assertEquals(second, reopened.findById("2"));
+            ArrayList<Picture> expected = new ArrayList<>();
+            expected.add(first);
+            expected.add(second);
+            assertEquals(expected, reopened.findAll());
+        }
+    }
+
+    @Test
+    void testNoBinaryFile()
+    {
+        assertThrows(IOException.class, () -> new BinaryPictureDatasource("./src/test/resources/test-count.csv"));
+    }
+
+    @Test
+    void testConversion() throws IOException, ParseException
+    {
+        String csvPath = createEmptyFile("./src/test/resources/testConvert.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        ArrayList<Picture> pictures = new ArrayList<>();
+        try(FilePictureDatasource csv = new FilePictureDatasource(csvPath)) {
+            for(int i = 0; i < 10; i++) {
+                Picture picture = new Picture(String.valueOf(i), url, DF.parse("2020-05-12 22:53:5" + i), "Bête " + i, i, -i);
+                csv.insert(picture);
+                pictures.add(picture);
+            }
+        }
+        assertEquals(10, PictureFormatConverter.csvToBinary(csvPath, "./src/test/resources/testConvert.bin"));
+        // an existing target with a pending write-ahead log, which must not be applied to the new file
+        FilePictureDatasource old = new FilePictureDatasource(createEmptyFile("./src/test/resources/testConvert2.csv"));
+        old.insert(new Picture("old", url, DF.parse("2020-05-12 22:53:50"), "Old", 0, 0));
+        assertEquals(10, PictureFormatConverter.binaryToCsv("./src/test/resources/testConvert.bin", "./src/test/resources/testConvert2.csv"));
+        try(FilePictureDatasource converted = new FilePictureDatasource("./src/test/resources/testConvert2.csv")) {
+            assertEquals(pictures, converted.findAll());
+        }
+        assertFalse(new File("./src/test/resources/testConvert2.csv.wal.rejected").exists());
+    }
+}
@@ -0,0 +1,88 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import static ch.zhaw.prog2.io.picturedb.TestFiles.createEmptyFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingPictureDatasourceTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+
+    @Test
+    void testHitsAndMisses() throws IOException, ParseException, RecordNotFoundException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testCache.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture picture = new Picture("1", url, date, "Aaron", 20.0f, 30.0f);
+        Picture updated = new Picture("1", url, date, "Aaron the second", 20.0f, 30.0f);
+
+        try(CachingPictureDatasource datasource = new CachingPictureDatasource(new FilePictureDatasource(filepath), 10)) {
+            datasource.insert(picture);
+            assertEquals(picture, datasource.findById("1"));
+            assertEquals(picture, datasource.findById("1"));
+            assertEquals(1, datasource.getMissCount());
+            assertEquals(1, datasource.getHitCount());
+
+            // a caller modifying the date of a returned picture does not modify the cached one
+            datasource.findById("1").getDate().setTime(0);
+            assertEquals(date, datasource.findById("1").getDate());
+            assertNotSame(datasource.findById("1"), datasource.findById("1"));
+            assertEquals(5, datasource.getHitCount());
+
+            // modifications invalidate the cached picture
+            datasource.update(updated);
+            assertEquals(updated, datasource.findById("1"));
+            assertEquals(2, datasource.getMissCount());
+            datasource.delete(updated);
+            assertThrows(RecordNotFoundException.class, () -> datasource.findById("1"));
+            assertEquals(0, datasource.size());
+        }
+    }
+
+    @Test
+    void testEviction() throws IOException, ParseException, RecordNotFoundException
+    {
+        String filepath = createEmptyFile("./src/test/resources/testCacheEviction.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        ArrayList<Picture> pictures = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            pictures.add(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i));
+        }
+        FilePictureDatasource file = new FilePictureDatasource(filepath);
+        file.insertAll(pictures);
+
+        CachingPictureDatasource datasource = new CachingPictureDatasource(file, 3);
+        datasource.findById("0");
+        datasource.findById("1");
+        datasource.findById("2");
+        // "0" is used recently, so "1" is evicted
+        datasource.findById("0");
+        datasource.findById("3");
+        assertEquals(3, datasource.size());
+        assertEquals(1, datasource.getEvictionCount());
+        datasource.findById("0");
+        assertEquals(2, datasource.getHitCount());
+        datasource.findById("1");
+        assertEquals(5, datasource.getMissCount());
+
+        long size = CachingPictureDatasource.estimateSize(pictures.get(0));
+        CachingPictureDatasource bounded = new CachingPictureDatasource(file, 10, 2 * size);
+        for(Picture picture : pictures) {
+            assertEquals(picture, bounded.findById(picture.getId()));
+        }
+        assertEquals(2, bounded.size());
+        assertEquals(8, bounded.getEvictionCount());
+        assertTrue(bounded.getEstimatedBytes() <= 2 * size);
+        bounded.close();
+    }
+}
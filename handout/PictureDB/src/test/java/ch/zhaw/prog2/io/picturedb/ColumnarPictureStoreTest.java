@@ -0,0 +1,93 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarPictureStoreTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+
+    @Test
+    void testViews() throws IOException, ParseException
+    {
+        List<Picture> pictures = new ArrayList<>();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        for(int i = 0; i < 50; i++) {
+            URL pictureUrl = i % 10 == 0 ? new URL("https://example.org/picture-" + i + ".jpg") : url;
+            pictures.add(new Picture(pictureUrl, DF.parse("2020-05-12 22:53:59"), "Bild Nr. " + i + " – Zürich", i / 2f, -i / 3f));
+        }
+        // ids which are not canonical UUIDs are stored as text
+        pictures.add(new Picture("42", url, DF.parse("2021-01-01 00:00:00"), "Text id", 1, 2));
+        pictures.add(new Picture(UUID.randomUUID().toString().toUpperCase(), url, DF.parse("2021-01-01 00:00:00"), "Upper case UUID", 1, 2));
+        pictures.add(new Picture("", url, DF.parse("2021-01-01 00:00:00"), "", 1, 2));
+
+        // a small initial capacity and page size, so the columns and the arena have to grow
+        ColumnarPictureStore store = new ColumnarPictureStore(4, new ByteArena(256));
+        store.addAll(pictures.subList(0, 30));
+        for(Picture picture : pictures.subList(30, pictures.size())) {
+            store.add(picture);
+        }
+        assertEquals(pictures.size(), store.size());
+        for(int i = 0; i < pictures.size(); i++) {
+            Picture picture = pictures.get(i);
+            ColumnarPictureStore.PictureView view = store.get(i);
+            assertEquals(picture.getId(), view.getId());
+            assertEquals(picture.getUrl(), view.getUrl());
+            assertEquals(picture.getDate(), view.getDate());
+            assertEquals(picture.getTitle(), view.getTitle());
+            assertEquals(picture.getLongitude(), view.getLongitude());
+            assertEquals(picture.getLatitude(), view.getLatitude());
+            assertEquals(picture, view.toPicture());
+            assertEquals(picture.getId(), view.toPicture().getId());
+        }
+
+        // forEach moves a single view over all pictures
+        List<String> ids = new ArrayList<>();
+        store.forEach(view -> ids.add(view.getId()));
+        assertEquals(pictures.stream().map(Picture::getId).collect(Collectors.toList()), ids);
+        assertThrows(IndexOutOfBoundsException.class, () -> store.get(pictures.size()));
+        assertTrue(store.getMemoryUsage() > 0);
+    }
+
+    @Test
+    void testFindAllColumnar() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testColumnar.csv");
+            if(file.exists()) file.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testColumnar.csv", mode);
+            for(int i = 0; i < 20; i++) {
+                datasource.insert(new Picture(url, DF.parse("2020-05-" + (10 + i) + " 12:00:00"), "Picture " + i, i, i));
+            }
+            Picture first = datasource.findAll().iterator().next();
+            datasource.update(new Picture(first.getId(), url, first.getDate(), "Updated", 1.5f, 2.5f));
+            datasource.delete(datasource.findAll().stream().filter(p -> p.getTitle().equals("Picture 7")).findFirst().get());
+
+            Map<String, Picture> expected = new HashMap<>();
+            for(Picture picture : datasource.findAll()) {
+                expected.put(picture.getId(), picture);
+            }
+            ColumnarPictureStore store = datasource.findAllColumnar();
+            assertEquals(19, store.size());
+            for(int i = 0; i < store.size(); i++) {
+                Picture picture = store.toPicture(i);
+                assertEquals(expected.get(picture.getId()), picture);
+            }
+            datasource.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress test: several writer threads insert, update and delete their own records,
+ * while reader threads continuously query the datasource.
+ * Afterwards the content of the datasource has to match exactly the expected state of each writer.
+ */
+public class FilePictureDatasourceConcurrencyTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final int WRITERS = 6;
+    private static final int READERS = 4;
+    private static final int RECORDS_PER_WRITER = 40;
+
+    @Test
+    void testConcurrentAccessRewrite() throws Exception
+    {
+        runStressTest("./src/test/resources/testConcurrentRewrite.csv", FilePictureDatasource.StorageMode.REWRITE);
+    }
+
+    @Test
+    void testConcurrentAccessLogStructured() throws Exception
+    {
+        runStressTest("./src/test/resources/testConcurrentLog.csv", FilePictureDatasource.StorageMode.LOG_STRUCTURED);
+    }
+
+    private void runStressTest(String filepath, FilePictureDatasource.StorageMode storageMode) throws Exception
+    {
+        File file = new File(filepath);
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        FilePictureDatasource datasource = new FilePictureDatasource(filepath, storageMode);
+        datasource.setCompactionThreshold(0.3);
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = new SimpleDateFormat(DATE_FORMAT).parse("2020-05-12 22:53:59");
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<Map<String, Picture>>> writers = new ArrayList<>();
+        for(int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                start.await();
+                Map<String, Picture> expected = new HashMap<>();
+                for(int i = 0; i < RECORDS_PER_WRITER; i++) {
+                    Picture picture = new Picture(writer + "-" + i, url, date, "Writer " + writer + " picture " + i, writer, i);
+                    datasource.insert(picture);
+                    expected.put(picture.getId(), picture);
+                    if(i % 3 == 1) {
+                        Picture updated = new Picture(picture.getId(), url, date, "Updated " + picture.getTitle(), writer, i);
+                        datasource.update(updated);
+                        expected.put(updated.getId(), updated);
+                    }
+                    if(i % 5 == 2) {
+                        datasource.delete(picture);
+                        expected.remove(picture.getId());
+                    }
+                }
+                return expected;
+            }));
+        }
+        List<Future<Integer>> readers = new ArrayList<>();
+        for(int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(() -> {
+                start.await();
+                int reads = 0;
+                while(writing.get()) {
+                    Collection<Picture> pictures = datasource.findAll();
+                    for(Picture picture : pictures) {
+                        assertTrue(picture.getTitle().contains("picture"), "corrupt record " + picture);
+                    }
+                    datasource.findByPosition(2.0f, 20.0f, 1.5f);
+                    assertTrue(datasource.count() >= 0);
+                    reads++;
+                }
+                return reads;
+            }));
+        }
+
+        start.countDown();
+        Map<String, Picture> expected = new HashMap<>();
+        for(Future<Map<String, Picture>> writer : writers) {
+            expected.putAll(writer.get(2, TimeUnit.MINUTES));
+        }
+        writing.set(false);
+        for(Future<Integer> reader : readers) {
+            assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+        }
+        executor.shutdown();
+        datasource.close();
+
+        assertEquals(expected.size(), datasource.count());
+        for(Picture picture : expected.values()) {
+            assertEquals(picture, datasource.findById(picture.getId()));
+        }
+        Map<String, Picture> actual = new HashMap<>();
+        for(Picture picture : datasource.findAll()) {
+            assertNull(actual.put(picture.getId(), picture), "duplicate record " + picture.getId());
+        }
+        assertEquals(expected, actual);
+
+        // a new instance has to read the same state from the file
+        FilePictureDatasource reopened = new FilePictureDatasource(filepath, storageMode);
+        assertEquals(expected.size(), reopened.count());
+        assertEquals(expected.size(), reopened.findAll().size());
+    }
+}
@@ -1,7 +1,11 @@
 package ch.zhaw.prog2.io.picturedb;
 import org.junit.jupiter.api.Test;
 
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -9,8 +13,13 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -315,4 +324,570 @@ public class FilePictureDatasourceTest {
             0.0f,
             0.0f));
     }
+
+    @Test
+    void testFindByIdAfterModifications() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testIndex.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testIndex.csv");
+        Picture first = new Picture("1", new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg"),
+            DF.parse("2020-05-12 22:53:59"), "Aaron", 20.0f, 30.0f);
+        Picture second = new Picture("2", new URL("https://einfachtierisch.de/media/cache/article_teaser/cms/2013/11/Hund-Jung-Silvester.jpg?327905"),
+            DF.parse("2020-05-12 22:54:45"), "Süsser Hund", 21.0f, 20.0f);
+        Picture third = new Picture("3", new URL("https://static.geo.de/bilder/62/dd/63111/article_image_big/panda-cb-18781595.jpg"),
+            DF.parse("2020-05-12 19:29:05"), "Great Bori", 0.0f, 0.0f);
+        datasource.insert(first);
+        datasource.insert(second);
+        datasource.insert(third);
+        assertEquals(second, datasource.findById("2"));
+
+        Picture updated = new Picture("1", first.getUrl(), first.getDate(), "Aaron the second", 20.0f, 30.0f);
+        datasource.update(updated);
+        assertEquals(updated, datasource.findById("1"));
+        assertEquals(third, datasource.findById("3"));
+
+        datasource.delete(second);
+        assertThrows(RecordNotFoundException.class, () -> datasource.findById("2"));
+        assertEquals(third, datasource.findById("3"));
+        assertEquals(2, datasource.count());
+
+        // a newly opened datasource builds the same index from the file
+        FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testIndex.csv");
+        assertEquals(updated, reopened.findById("1"));
+        assertEquals(third, reopened.findById("3"));
+    }
+
+    @Test
+    void testFindByPositionWithGridIndex() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testGrid.csv");
+        File gridFile = new File("./src/test/resources/testGrid.csv.grid");
+        if(file.exists()) file.delete();
+        if(gridFile.exists()) gridFile.delete();
+        file.createNewFile();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture inside = new Picture("1", url, date, "Aaron", 20.5f, 29.5f);
+        Picture outside = new Picture("2", url, date, "Rex", 50.0f, 40.0f);
+        Picture border = new Picture("3", url, date, "Welpe", 19.9f, 30.9f);
+
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testGrid.csv");
+        datasource.insert(inside);
+        datasource.insert(outside);
+        ArrayList<Picture> expected = new ArrayList<>();
+        expected.add(inside);
+        assertEquals(expected, datasource.findByPosition(20.0f, 30.0f, 1.0f));
+
+        // inserted after the index has been built
+        datasource.insert(border);
+        expected.add(border);
+        assertEquals(expected, datasource.findByPosition(20.0f, 30.0f, 1.0f));
+
+        datasource.delete(inside);
+        expected.remove(inside);
+        assertEquals(expected, datasource.findByPosition(20.0f, 30.0f, 1.0f));
+        datasource.close();
+        assertTrue(gridFile.exists());
+
+        FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testGrid.csv");
+        assertEquals(expected, reopened.findByPosition(20.0f, 30.0f, 1.0f));
+    }
+
+    @Test
+    void testLogStructuredStorage() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testLog.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture first = new Picture("1", url, date, "Aaron", 20.0f, 30.0f);
+        Picture second = new Picture("2", url, date, "Rex", 50.0f, 40.0f);
+        Picture updated = new Picture("1", url, date, "Aaron the second", 20.0f, 30.0f);
+
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testLog.csv",
+            FilePictureDatasource.StorageMode.LOG_STRUCTURED);
+        datasource.setCompactionThreshold(1.0);
+        datasource.insert(first);
+        datasource.insert(second);
+        datasource.update(updated);
+        datasource.delete(second);
+        assertThrows(RecordNotFoundException.class, () -> datasource.delete(second));
+        assertThrows(RecordNotFoundException.class, () -> datasource.update(second));
+
+        // all modifications are appended: 2 inserts, 1 update, 1 tombstone
+        assertEquals(4, countLines(file));
+        assertEquals(1, datasource.count());
+        assertEquals(updated, datasource.findById("1"));
+        assertThrows(RecordNotFoundException.class, () -> datasource.findById("2"));
+        ArrayList<Picture> expected = new ArrayList<>();
+        expected.add(updated);
+        assertEquals(expected, datasource.findAll());
+        assertEquals(expected, datasource.findByPosition(20.0f, 30.0f, 1.0f));
+
+        FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testLog.csv",
+            FilePictureDatasource.StorageMode.LOG_STRUCTURED);
+        assertEquals(expected, reopened.findAll());
+
+        datasource.compact();
+        assertEquals(1, countLines(file));
+        assertEquals(expected, datasource.findAll());
+        assertEquals(updated, datasource.findById("1"));
+        datasource.close();
+    }
+
+    @Test
+    void testMappedReadMode() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testMapped.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testMapped.csv");
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        ArrayList<Picture> expected = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            Picture picture = new Picture(String.valueOf(i), url, DF.parse("2020-05-12 22:53:59"), "Bête " + i, i, -i);
+            datasource.insert(picture);
+            expected.add(picture);
+        }
+        datasource.setReadMode(FilePictureDatasource.ReadMode.MAPPED);
+        assertEquals(100, datasource.count());
+        assertEquals(expected, datasource.findAll());
+        assertEquals(expected.subList(10, 13), datasource.findByPosition(11.0f, -11.0f, 1.5f));
+
+        FilePictureDatasource emptyDatasource = new FilePictureDatasource("./src/test/resources/test-count.csv");
+        emptyDatasource.setReadMode(FilePictureDatasource.ReadMode.MAPPED);
+        assertEquals(5, emptyDatasource.count());
+    }
+
+    @Test
+    void testStreamAll() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testStream.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testStream.csv",
+            FilePictureDatasource.StorageMode.LOG_STRUCTURED);
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        for(int i = 0; i < 20; i++) {
+            datasource.insert(new Picture(String.valueOf(i), url, DF.parse("2020-05-12 22:53:59"), "Picture " + i, i, i));
+        }
+        datasource.delete(datasource.findById("0"));
+
+        try(Stream<Picture> pictures = datasource.streamAll()) {
+            assertEquals(new ArrayList<>(datasource.findAll()), pictures.collect(Collectors.toList()));
+        }
+        try(Stream<Picture> pictures = datasource.streamAll()) {
+            assertEquals("1", pictures.findFirst().orElseThrow().getId());
+            // inserted after the stream has been created
+            datasource.insert(new Picture("20", url, DF.parse("2020-05-12 22:53:59"), "Picture 20", 20, 20));
+        }
+        try(Stream<Picture> pictures = datasource.streamAll()) {
+            assertEquals(9, pictures.filter(picture -> picture.getLongitude() > 11.5f).count());
+        }
+        datasource.close();
+    }
+
+    @Test
+    void testParallelReadMode() throws IOException, ParseException
+    {
+        File file = new File("./src/test/resources/testParallel.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        // large enough to be split into several ranges
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(file, CHARSET))) {
+            for(int i = 0; i < 50000; i++) {
+                writer.write(i + "; 2020-05-12 22:53:59; " + (i % 360 - 180) + ".5; " + (i % 180 - 90) + ".25; Picture " + i
+                    + "; https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+                writer.newLine();
+            }
+        }
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testParallel.csv");
+        ArrayList<Picture> expected = new ArrayList<>(datasource.findAll());
+        datasource.setReadMode(FilePictureDatasource.ReadMode.PARALLEL);
+        assertEquals(50000, datasource.count());
+        assertEquals(expected, datasource.findAll());
+    }
+
+    @Test
+    void testBatchOperations() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testBatch.csv");
+            if(file.exists()) file.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testBatch.csv", mode);
+            ArrayList<Picture> pictures = new ArrayList<>();
+            for(int i = 0; i < 10; i++) {
+                pictures.add(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i));
+            }
+            datasource.insertAll(pictures);
+            assertEquals(10, datasource.count());
+            assertEquals(pictures.get(5), datasource.findById("5"));
+
+            ArrayList<Picture> updates = new ArrayList<>();
+            for(int i = 0; i < 5; i++) {
+                Picture updated = new Picture(String.valueOf(i), url, date, "Updated " + i, i, i);
+                updates.add(updated);
+                pictures.set(i, updated);
+            }
+            datasource.updateAll(updates);
+            assertEquals(pictures.get(2), datasource.findById("2"));
+
+            datasource.deleteAll(pictures.subList(5, 8));
+            pictures.subList(5, 8).clear();
+            // in storage mode LOG_STRUCTURED updated records are moved to the end of the file
+            assertEquals(new HashSet<>(pictures), new HashSet<>(datasource.findAll()));
+
+            // nothing is changed if one of the records does not exist
+            ArrayList<Picture> invalid = new ArrayList<>();
+            invalid.add(new Picture("0", url, date, "Not applied", 0, 0));
+            invalid.add(new Picture("99", url, date, "Missing", 0, 0));
+            assertThrows(RecordNotFoundException.class, () -> datasource.updateAll(invalid));
+            assertThrows(RecordNotFoundException.class, () -> datasource.deleteAll(invalid));
+            assertEquals(new HashSet<>(pictures), new HashSet<>(datasource.findAll()));
+            datasource.close();
+        }
+    }
+
+    @Test
+    void testRecoveryFromWriteAheadLog() throws IOException, ParseException, RecordNotFoundException
+    {
+        File file = new File("./src/test/resources/testWal.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testWal.csv");
+        ArrayList<Picture> expected = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            Picture picture = new Picture(String.valueOf(i), url, date, "Picture " + i, i, i);
+            datasource.insert(picture);
+            expected.add(picture);
+        }
+        long committedLength = file.length();
+
+        // crash: the last appends to the datafile are lost, the committed log entries are not
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(committedLength / 2);
+        }
+        FilePictureDatasource recovered = new FilePictureDatasource("./src/test/resources/testWal.csv");
+        assertEquals(committedLength, file.length());
+        assertEquals(expected, recovered.findAll());
+
+        // crash: an append to the datafile without committed log entry is removed
+        recovered.insert(new Picture("10", url, date, "Picture 10", 10, 10));
+        expected.add(recovered.findById("10"));
+        try(OutputStream out = new FileOutputStream(file, true)) {
+            out.write("11; 2020-05-12 22:5".getBytes(CHARSET));
+        }
+        FilePictureDatasource recoveredAgain = new FilePictureDatasource("./src/test/resources/testWal.csv");
+        assertEquals(expected, recoveredAgain.findAll());
+        recoveredAgain.close();
+        assertEquals(expected, new FilePictureDatasource("./src/test/resources/testWal.csv").findAll());
+    }
+
+    @Test
+    void testWriteAheadLogOfReplacedDatafile() throws IOException, ParseException
+    {
+        File file = new File("./src/test/resources/testWalReplaced.csv");
+        if(file.exists()) file.delete();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        Picture a = new Picture("a", url, date, "Picture a", 1, 1);
+        Picture b = new Picture("b", url, date, "Picture b", 2, 2);
+        Picture d = new Picture("d", url, date, "Picture d", 4, 4);
+        Picture e = new Picture("e", url, date, "Picture e", 5, 5);
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), CHARSET)) {
+            writer.write(toLine(a) + "\n" + toLine(b) + "\n");
+        }
+        // not closed, so the log of the insert is left behind
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testWalReplaced.csv");
+        datasource.insert(new Picture("c", url, date, "Picture c", 3, 3));
+
+        // the datafile is replaced by a file with the same beginning
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), CHARSET)) {
+            writer.write(toLine(a) + "\n" + toLine(b) + "\n" + toLine(d) + "\n" + toLine(e) + "\n");
+        }
+        FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testWalReplaced.csv");
+        assertEquals(List.of(a, b, d, e), new ArrayList<>(reopened.findAll()));
+        reopened.close();
+        assertTrue(new File("./src/test/resources/testWalReplaced.csv.wal.rejected").exists());
+
+        // a recreated empty datafile does not get the records of the log either
+        datasource = new FilePictureDatasource("./src/test/resources/testWalReplaced.csv");
+        datasource.insert(new Picture("f", url, date, "Picture f", 6, 6));
+        file.delete();
+        file.createNewFile();
+        reopened = new FilePictureDatasource("./src/test/resources/testWalReplaced.csv");
+        assertEquals(0, reopened.findAll().size());
+        reopened.close();
+    }
+
+    @Test
+    void testCountFromMetadata() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testMeta.csv");
+            File metaFile = new File("./src/test/resources/testMeta.csv.meta");
+            if(file.exists()) file.delete();
+            metaFile.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testMeta.csv", mode);
+            assertEquals(0, datasource.count());
+            for(int i = 0; i < 5; i++) {
+                datasource.insert(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i));
+            }
+            datasource.update(new Picture("1", url, date, "Updated", 1, 1));
+            datasource.delete(datasource.findById("2"));
+            assertEquals(4, datasource.count());
+            datasource.close();
+            assertTrue(metaFile.exists());
+
+            FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testMeta.csv", mode);
+            assertEquals(4, reopened.count());
+            reopened.insert(new Picture("5", url, date, "Picture 5", 5, 5));
+            assertEquals(5, reopened.count());
+            reopened.close();
+
+            // the metadata is stale after the datafile has been modified by someone else
+            try(BufferedWriter writer = new BufferedWriter(new FileWriter(file, CHARSET, true))) {
+                writer.write("6; 2020-05-12 22:53:59; 6.0; 6.0; Picture 6; " + url);
+                writer.newLine();
+            }
+            assertEquals(6, new FilePictureDatasource("./src/test/resources/testMeta.csv", mode).count());
+        }
+    }
+
+    @Test
+    void testQuery() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testQuery.csv");
+            if(file.exists()) file.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testQuery.csv", mode);
+            ArrayList<Picture> pictures = new ArrayList<>();
+            for(int i = 0; i < 10; i++) {
+                Date date = DF.parse("2020-05-1" + i + " 12:00:00");
+                pictures.add(new Picture(String.valueOf(i), url, date, (i % 2 == 0 ? "Hund " : "Katze ") + i, i, i));
+            }
+            datasource.insertAll(pictures);
+            datasource.update(new Picture("4", url, pictures.get(4).getDate(), "Katze 4", 4, 4));
+            datasource.delete(pictures.get(6));
+
+            // title prefix, ordered descending by date, only id selected
+            PictureQuery query = new PictureQuery()
+                .select(PictureQuery.Field.ID)
+                .titleStartsWith("Hund")
+                .orderBy(PictureQuery.Field.DATE, false);
+            ArrayList<String> ids = new ArrayList<>();
+            for(PictureProjection projection : datasource.query(query)) {
+                ids.add(projection.getId());
+                assertThrows(IllegalStateException.class, projection::getTitle);
+            }
+            assertEquals(List.of("8", "2", "0"), ids);
+
+            // date range and bounding box, with limit
+            List<PictureProjection> result = datasource.query(new PictureQuery()
+                .dateBetween(DF.parse("2020-05-11 00:00:00"), DF.parse("2020-05-19 00:00:00"))
+                .within(3.0f, 3.0f, 9.0f, 9.0f)
+                .orderBy(PictureQuery.Field.LATITUDE, true)
+                .limit(3));
+            assertEquals(3, result.size());
+            assertEquals("3", result.get(0).getId());
+            assertEquals("Katze 4", result.get(1).getTitle());
+            assertEquals(5.0f, result.get(2).getLongitude());
+            assertEquals(url.toString(), result.get(2).getUrl());
+
+            // the default implementation returns the same result
+            PictureDatasource unoptimized = new PictureDatasource() {
+                public void insert(Picture picture) { }
+                public void update(Picture picture) { }
+                public void delete(Picture picture) { }
+                public int count() { return 0; }
+                public Picture findById(String id) { return null; }
+                public Collection<Picture> findAll() throws IOException, ParseException { return datasource.findAll(); }
+                public Collection<Picture> findByPosition(float longitude, float latitude, float deviation) { return null; }
+            };
+            query = new PictureQuery().within(0.0f, 0.0f, 9.0f, 9.0f).dateBetween(null, DF.parse("2020-05-17 00:00:00"));
+            assertEquals(new HashSet<>(unoptimized.query(query)), new HashSet<>(datasource.query(query)));
+            assertEquals(6, datasource.query(query).size());
+            assertEquals(2, datasource.query(new PictureQuery().limit(2)).size());
+            datasource.close();
+        }
+    }
+
+    @Test
+    void testFindByDateRange() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testDateRange.csv");
+            new File("./src/test/resources/testDateRange.csv.dates").delete();
+            if(file.exists()) file.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testDateRange.csv", mode);
+            // inserted in the order 0, 3, 6, 9, 2, 5, 8, 1, 4, 7 of the days
+            for(int i = 0; i < 10; i++) {
+                int day = (i * 3) % 10;
+                datasource.insert(new Picture(String.valueOf(day), url, DF.parse("2020-05-1" + day + " 12:00:00"), "Picture " + day, day, day));
+            }
+            assertEquals(List.of("2", "3", "4", "5", "6"),
+                ids(datasource.findByDateRange(DF.parse("2020-05-12 12:00:00"), DF.parse("2020-05-17 12:00:00"))));
+
+            // the date index is kept up to date by the modifications
+            datasource.update(new Picture("3", url, DF.parse("2020-05-20 12:00:00"), "Picture 3", 3, 3));
+            datasource.delete(datasource.findById("5"));
+            datasource.insert(new Picture("10", url, DF.parse("2020-05-14 12:00:00"), "Picture 10", 10, 10));
+            List<String> ascending = List.of("0", "1", "2", "4", "10", "6", "7", "8", "9", "3");
+            assertEquals(ascending, ids(datasource.findByDateRange(null, null)));
+            assertEquals(List.of("4", "10", "6"), ids(datasource.findByDateRange(null, null, 3, 3, true)));
+            assertEquals(List.of("8", "7", "6", "10"), ids(datasource.findByDateRange(DF.parse("2020-05-11 00:00:00"), null, 2, 4, false)));
+            assertEquals(List.of(), datasource.findByDateRange(null, null, 10, 5, true));
+            datasource.close();
+
+            // the date index is loaded from its sidecar file
+            assertTrue(new File("./src/test/resources/testDateRange.csv.dates").exists());
+            FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testDateRange.csv", mode);
+            assertEquals(ascending, ids(reopened.findByDateRange(null, null)));
+            reopened.close();
+        }
+    }
+
+    @Test
+    void testFindByTitle() throws IOException, ParseException, RecordNotFoundException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        String[] titles = {"Hund im Park", "Katze im Garten", "Hund und Katze", "Park am See", "Der Hund, der bellt"};
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            File file = new File("./src/test/resources/testTitle.csv");
+            new File("./src/test/resources/testTitle.csv.titles").delete();
+            if(file.exists()) file.delete();
+            file.createNewFile();
+            FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testTitle.csv", mode);
+            for(int i = 0; i < titles.length; i++) {
+                datasource.insert(new Picture(String.valueOf(i), url, date, titles[i], i, i));
+            }
+            assertEquals(List.of("0", "2", "4"), ids(datasource.findByTitle("hund", true)));
+            assertEquals(List.of("2"), ids(datasource.findByTitle("Hund KATZE", true)));
+            assertEquals(List.of("0", "1", "2", "4"), ids(datasource.findByTitle("Hund Katze", false)));
+            assertEquals(List.of(), datasource.findByTitle("Hund Vogel", true));
+            assertEquals(List.of(), datasource.findByTitle(" ,", false));
+
+            // the title index is kept up to date by the modifications
+            datasource.update(new Picture("0", url, date, "Vogel im Park", 0, 0));
+            datasource.delete(datasource.findById("4"));
+            datasource.insert(new Picture("5", url, date, "Hund am See", 5, 5));
+            assertEquals(List.of("2", "5"), sorted(ids(datasource.findByTitle("hund", true))));
+            assertEquals(List.of("0", "3"), sorted(ids(datasource.findByTitle("park", false))));
+            datasource.close();
+
+            // the title index is loaded from its sidecar file
+            assertTrue(new File("./src/test/resources/testTitle.csv.titles").exists());
+            FilePictureDatasource reopened = new FilePictureDatasource("./src/test/resources/testTitle.csv", mode);
+            assertEquals(List.of("3", "5"), sorted(ids(reopened.findByTitle("see", true))));
+            assertEquals(List.of("0", "3", "5"), sorted(ids(reopened.findByTitle("see vogel", false))));
+            reopened.close();
+        }
+    }
+
+    @Test
+    void testMetrics() throws IOException, ParseException, RecordNotFoundException, MalformedObjectNameException
+    {
+        File file = new File("./src/test/resources/testMetrics.csv");
+        if(file.exists()) file.delete();
+        file.createNewFile();
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        Date date = DF.parse("2020-05-12 22:53:59");
+        FilePictureDatasource datasource = new FilePictureDatasource("./src/test/resources/testMetrics.csv");
+        DatasourceMetrics metrics = datasource.getMetrics();
+        for(int i = 0; i < 10; i++) {
+            datasource.insert(new Picture(String.valueOf(i), url, date, "Picture " + i, i, i));
+        }
+        assertEquals(file.length(), metrics.getBytesWritten());
+        assertEquals(10, datasource.findAll().size());
+        datasource.findById("3");
+        assertEquals(11, metrics.getRowsScanned());
+        assertEquals(11, metrics.getRowsReturned());
+        assertTrue(metrics.getBytesRead() > file.length());
+        assertEquals(1, datasource.findByPosition(5, 5, 0.5f).size());
+        assertTrue(metrics.getRowsScanned() > metrics.getRowsReturned());
+
+        datasource.update(new Picture("3", url, date, "Updated", 3, 3));
+        assertEquals(1, metrics.getRewriteCount());
+        LatencyHistogram inserts = metrics.getLatency(DatasourceMetrics.Operation.INSERT);
+        assertEquals(10, inserts.getCount());
+        assertTrue(inserts.getPercentile50() <= inserts.getPercentile99());
+        assertTrue(inserts.getPercentile99() <= inserts.getMax());
+        assertEquals(1, metrics.getLatency(DatasourceMetrics.Operation.UPDATE).getCount());
+
+        // the metrics are registered as MBeans on request, until the datasource is closed
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName names = new ObjectName("ch.zhaw.prog2.io.picturedb:type=FilePictureDatasource,name=*testMetrics.csv*,*");
+        assertEquals(0, server.queryNames(names, null).size());
+        datasource.registerMBeans();
+        int registered = server.queryNames(names, null).size();
+        assertEquals(DatasourceMetrics.Operation.values().length + 1, registered);
+        metrics.reset();
+        assertEquals(0, metrics.getBytesRead());
+        assertEquals(0, inserts.getCount());
+        datasource.close();
+        assertEquals(0, server.queryNames(names, null).size());
+    }
+
+    @Test
+    void testLatencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000, histogram.getMax());
+        // the percentiles are at most about 3% above the exact values
+        assertEquals(50_000, histogram.getPercentile50(), 50_000 * 0.035);
+        assertEquals(99_000, histogram.getPercentile99(), 99_000 * 0.035);
+        assertTrue(histogram.getPercentile50() >= 50_000);
+        assertEquals(100_000, histogram.getValueAtPercentile(100));
+        for(long value : new long[]{0, 63, 64, 65, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.highestValue(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+        }
+    }
+
+    private List<String> sorted(List<String> ids)
+    {
+        ids.sort(null);
+        return ids;
+    }
+
+    private List<String> ids(Collection<Picture> pictures)
+    {
+        return pictures.stream().map(Picture::getId).collect(Collectors.toList());
+    }
+
+    private String toLine(Picture picture)
+    {
+        return picture.getId() + "; " + DF.format(picture.getDate()) + "; " + picture.getLongitude() + "; "
+            + picture.getLatitude() + "; " + picture.getTitle() + "; " + picture.getUrl();
+    }
+
+    private int countLines(File file) throws IOException
+    {
+        int lines = 0;
+        try(BufferedReader reader = new BufferedReader(new FileReader(file, CHARSET))) {
+            while(reader.readLine() != null) lines++;
+        }
+        return lines;
+    }
 }
@@ -0,0 +1,110 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionedPictureDatasourceTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+    private static final String DIRECTORY = "./src/test/resources/partitioned";
+
+    /**
+     * Removes the datafiles and sidecar files of previous runs.
+     */
+    @BeforeEach
+    void deletePartitions()
+    {
+        File directory = new File(DIRECTORY);
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) file.delete();
+        }
+    }
+
+    @Test
+    void testRouting() throws IOException, ParseException, RecordNotFoundException
+    {
+        for(FilePictureDatasource.StorageMode mode : FilePictureDatasource.StorageMode.values()) {
+            deletePartitions();
+            URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+            ArrayList<Picture> pictures = new ArrayList<>();
+            for(int i = 0; i < 20; i++) {
+                pictures.add(new Picture(String.valueOf(i), url, DF.parse("2020-05-" + (10 + i) + " 12:00:00"), "Picture " + i, i, i));
+            }
+            PartitionedPictureDatasource datasource = new PartitionedPictureDatasource(DIRECTORY, 4, mode);
+            datasource.insertAll(pictures.subList(0, 19));
+            datasource.insert(pictures.get(19));
+            assertEquals(20, datasource.count());
+            assertEquals(new HashSet<>(pictures), new HashSet<>(datasource.findAll()));
+            try(Stream<Picture> stream = datasource.streamAll()) {
+                assertEquals(new HashSet<>(pictures), stream.collect(Collectors.toSet()));
+            }
+            assertEquals(pictures.get(7), datasource.findById("7"));
+
+            Picture updated = new Picture("3", url, pictures.get(3).getDate(), "Updated", 3, 3);
+            datasource.update(updated);
+            pictures.set(3, updated);
+            datasource.deleteAll(List.of(pictures.get(4), pictures.get(5)));
+            pictures.subList(4, 6).clear();
+            assertEquals(18, datasource.count());
+            assertEquals(new HashSet<>(pictures), new HashSet<>(datasource.findAll()));
+            assertThrows(RecordNotFoundException.class, () -> datasource.findById("4"));
+            assertThrows(RecordNotFoundException.class,
+                () -> datasource.updateAll(List.of(new Picture("99", url, pictures.get(0).getDate(), "Missing", 0, 0))));
+            datasource.close();
+
+            // each picture is stored in one partition only
+            for(int i = 0; i < 4; i++) {
+                FilePictureDatasource partition = new FilePictureDatasource(DIRECTORY + "/picture-data-" + i + ".csv", mode);
+                for(Picture picture : partition.findAll()) {
+                    assertEquals(i, datasource.partitionOf(picture.getId()));
+                }
+                partition.close();
+            }
+        }
+    }
+
+    @Test
+    void testMergedQueries() throws IOException, ParseException
+    {
+        URL url = new URL("https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg");
+        ArrayList<Picture> pictures = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            pictures.add(new Picture(String.valueOf(i), url, DF.parse("2020-05-" + (10 + i) + " 12:00:00"), "Picture " + (i % 2 == 0 ? "even" : "odd"), i, i));
+        }
+        PartitionedPictureDatasource datasource = new PartitionedPictureDatasource(DIRECTORY, 3, FilePictureDatasource.StorageMode.REWRITE);
+        datasource.insertAll(pictures);
+
+        // pages over all partitions in date order
+        assertEquals(pictures.subList(5, 10), datasource.findByDateRange(null, null, 5, 5, true));
+        assertEquals(List.of(pictures.get(17), pictures.get(16)),
+            datasource.findByDateRange(DF.parse("2020-05-12 00:00:00"), DF.parse("2020-05-28 00:00:00"), 0, 2, false));
+        assertEquals(10, datasource.findByTitle("odd", true).size());
+        assertEquals(new HashSet<>(pictures.subList(2, 5)), new HashSet<>(datasource.findByPosition(3, 3, 1.5f)));
+
+        List<PictureProjection> result = datasource.query(new PictureQuery()
+            .select(PictureQuery.Field.ID)
+            .titleStartsWith("Picture even")
+            .orderBy(PictureQuery.Field.LONGITUDE, false)
+            .limit(3));
+        assertEquals(List.of("18", "16", "14"), result.stream().map(PictureProjection::getId).collect(Collectors.toList()));
+        datasource.close();
+
+        // the number of partitions must not be reduced
+        assertThrows(IOException.class,
+            () -> new PartitionedPictureDatasource(DIRECTORY, 2, FilePictureDatasource.StorageMode.REWRITE));
+    }
+}
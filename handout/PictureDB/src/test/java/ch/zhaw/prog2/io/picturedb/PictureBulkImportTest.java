@@ -0,0 +1,95 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static ch.zhaw.prog2.io.picturedb.TestFiles.createEmptyFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PictureBulkImportTest {
+    private static final String URL = "https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg";
+
+    @Test
+    void testImport() throws IOException, ParseException
+    {
+        StringBuilder input = new StringBuilder();
+        List<String> expectedIds = new ArrayList<>();
+        for(int i = 1; i <= 5000; i++) {
+            if(i % 1000 == 0) {
+                input.append("invalid line\n");
+            } else if(i % 1500 == 0) {
+                input.append(i).append("; 2020-05-12 22:53:59; 200.0; 10.0; Out of range; ").append(URL).append('\n');
+            } else if(i % 700 == 0) {
+                input.append('\n');
+            } else {
+                input.append(i).append("; 2020-05-12 22:53:59; ").append(i % 180).append(".5; 10.0; Picture ").append(i).append("; ").append(URL).append("\r\n");
+                expectedIds.add(String.valueOf(i));
+            }
+        }
+        for(int parserThreads : new int[]{1, 4}) {
+            FilePictureDatasource datasource = new FilePictureDatasource(createEmptyFile("./src/test/resources/testBulkImport.csv"));
+            PictureBulkImport.Result result = new PictureBulkImport(datasource, parserThreads, 700)
+                .importFrom(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)));
+            assertEquals(5000, result.getLines());
+            assertEquals(expectedIds.size(), result.getImported());
+            // empty lines are skipped, not rejected
+            assertEquals(7, result.getRejected());
+            assertEquals(List.of(1000L, 1500L, 2000L, 3000L, 4000L, 4500L, 5000L),
+                result.getRejections().stream().map(PictureBulkImport.Rejection::getLineNumber).collect(Collectors.toList()));
+            assertTrue(result.getRecordsPerSecond() > 0);
+
+            // the pictures are inserted in the order of the input
+            assertEquals(expectedIds, ids(datasource.findAll()));
+            datasource.close();
+        }
+    }
+
+    @Test
+    void testWriteFailure() throws IOException
+    {
+        FilePictureDatasource datasource = new FilePictureDatasource(createEmptyFile("./src/test/resources/testBulkImportFailure.csv")) {
+            @Override
+            public void insertAll(Collection<Picture> pictures) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        StringBuilder input = new StringBuilder();
+        for(int i = 0; i < 100_000; i++) {
+            input.append(i).append("; 2020-05-12 22:53:59; 1.0; 2.0; Picture; ").append(URL).append('\n');
+        }
+        // the pipeline stops without blocking in one of its queues
+        IOException failure = assertThrows(IOException.class, () -> new PictureBulkImport(datasource, 2, 100)
+            .importFrom(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))));
+        assertEquals("Disk full", failure.getMessage());
+    }
+
+    @Test
+    void testRuntimeFailure() throws IOException
+    {
+        FilePictureDatasource datasource = new FilePictureDatasource(createEmptyFile("./src/test/resources/testBulkImportRuntimeFailure.csv")) {
+            @Override
+            public void insertAll(Collection<Picture> pictures) {
+                throw new IllegalStateException("Datasource closed");
+            }
+        };
+        // many more chunks than the permits of the pipeline
+        StringBuilder input = new StringBuilder();
+        for(int i = 0; i < 100_000; i++) {
+            input.append(i).append("; 2020-05-12 22:53:59; 1.0; 2.0; Picture; ").append(URL).append('\n');
+        }
+        IllegalStateException failure = assertThrows(IllegalStateException.class, () -> new PictureBulkImport(datasource, 2, 100)
+            .importFrom(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))));
+        assertEquals("Datasource closed", failure.getMessage());
+    }
+
+    private List<String> ids(Collection<Picture> pictures)
+    {
+        return pictures.stream().map(Picture::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,66 @@
+package ch.zhaw.prog2.io.picturedb;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PictureRecordParserTest {
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    @Test
+    void testParse() throws Exception
+    {
+        PictureRecordParser parser = new PictureRecordParser();
+        String url = "https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg";
+        Picture expected = new Picture("1", new URL(url), DF.parse("2020-05-12 22:53:59"), "Süsser Hund; Rex", -20.25f, 1.0E-5f);
+        Picture picture = parse(parser, "1; 2020-05-12 22:53:59; -20.25; 1.0E-5; Süsser Hund; Rex; " + url);
+        assertEquals(expected, picture);
+        assertEquals("1", picture.getId());
+        // the URL object is reused for the next record with the same url
+        assertSame(picture.getUrl(), parse(parser, "2; 2020-05-12 22:53:59; 0.0; 0.0; Rex; " + url).getUrl());
+
+        assertThrows(ParseException.class, () -> parse(parser, "1; 2020-05-12 22:53:59; 20.0"));
+        assertThrows(ParseException.class, () -> parse(parser, "1; 2020-05-12 22:53:59; x; 1.0; Rex; " + url));
+    }
+
+    @Test
+    void testParseDate() throws ParseException
+    {
+        PictureRecordParser parser = new PictureRecordParser();
+        String[] dates = {"2020-05-12 22:53:59", "1970-01-01 00:00:00", "2021-03-28 02:30:00", "2021-10-31 02:30:00",
+            "2020-02-30 12:00:00", "1850-06-01 12:00:00", "2020-5-1 1:2:3"};
+        for(String date : dates) {
+            byte[] bytes = date.getBytes(CHARSET);
+            assertEquals(DF.parse(date), parser.parseDate(bytes, 0, bytes.length), date);
+        }
+    }
+
+    @Test
+    void testParseFloat() throws ParseException
+    {
+        PictureRecordParser parser = new PictureRecordParser();
+        String[] values = {"0.0", "-0.0", "47.376888", "-180.0", "1.0E-5", "3.4028235E38", "1.4E-45",
+            "1.000000059604644775390625", "0.1234567890123456789", "+5", "NaN", "-Infinity"};
+        for(String value : values) {
+            byte[] bytes = value.getBytes(CHARSET);
+            assertEquals(Float.floatToIntBits(Float.parseFloat(value)),
+                Float.floatToIntBits(parser.parseFloat(bytes, 0, bytes.length)), value);
+        }
+        byte[] invalid = "1.0.0".getBytes(CHARSET);
+        assertThrows(ParseException.class, () -> parser.parseFloat(invalid, 0, invalid.length));
+    }
+
+    private static Picture parse(PictureRecordParser parser, String line) throws Exception
+    {
+        byte[] bytes = line.getBytes(CHARSET);
+        return parser.parse(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,26 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Datafiles used by the tests.
+ */
+class TestFiles {
+    private TestFiles()
+    {
+    }
+
+    /**
+     * Replaces the file by an empty one. The sidecar files of a previous run (indexes, write-ahead log, metadata)
+     * are deleted as well, so they are not applied to the new file.
+     *
+     * @return the path of the file
+     */
+    static String createEmptyFile(String filepath) throws IOException
+    {
+        FilePictureDatasource.deleteDatafile(filepath);
+        new File(filepath).createNewFile();
+        return filepath;
+    }
+}
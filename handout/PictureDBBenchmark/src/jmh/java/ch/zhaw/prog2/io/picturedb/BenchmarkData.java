@@ -0,0 +1,109 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Generates the synthetic datafiles used by the benchmarks.
+ * The files are generated with a fixed seed, i.e. the content of a file only depends on the number of rows.
+ * A generated file is stored in the benchmark directory (system property "picturedb.benchmark.dir")
+ * and reused by later benchmark runs.
+ * The id of a record is "picture-&lt;row&gt;", the positions are distributed uniformly over the globe.
+ */
+final class BenchmarkData {
+    static final String URL = "https://partner-hund.de/sites/partner-hund.de/files/grund-kommandos-hund.jpg";
+    private static final String DELIMITER = "; ";
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final long SEED = 42;
+    private static final long START_DATE = 1577836800000L; // 2020-01-01
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Generates a datafile with the given number of rows and stores it at the given path.
+     * Usage: BenchmarkData &lt;rows&gt; &lt;path&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.err.println("Usage: BenchmarkData <rows> <path>");
+            System.exit(1);
+        }
+        generate(Integer.parseInt(args[0]), new File(args[1]));
+    }
+
+    /**
+     * Returns the datafile with the given number of rows, generating it if it does not exist yet.
+     * The file must not be modified by the benchmarks, use {@link #workingCopy(int, String)} instead.
+     */
+    static File datafile(int rows) throws IOException {
+        File dir = new File(System.getProperty("picturedb.benchmark.dir", "build/benchmark-data"));
+        File file = new File(dir, "pictures-" + rows + ".csv");
+        if(!file.exists()) {
+            dir.mkdirs();
+            // generate into a temporary file, so an interrupted run does not leave an incomplete datafile
+            File tempFile = new File(dir, file.getName() + ".tmp");
+            generate(rows, tempFile);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    /**
+     * Copies the datafile with the given number of rows to a file which can be modified by a benchmark.
+     */
+    static File workingCopy(int rows, String name) throws IOException {
+        File source = datafile(rows);
+        File copy = new File(source.getParentFile(), name + "-" + rows + ".csv");
+        deleteWithSidecars(copy);
+        Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    /**
+     * Deletes the datafile and the index files stored next to it.
+     */
+    static void deleteWithSidecars(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(file.getName()));
+        if(files != null) {
+            for(File sidecar : files) {
+                sidecar.delete();
+            }
+        }
+    }
+
+    static String id(int row) {
+        return "picture-" + row;
+    }
+
+    static void generate(int rows, File file) throws IOException {
+        Random random = new Random(SEED);
+        DateFormat df = new SimpleDateFormat(DATE_FORMAT);
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8), 1024 * 1024)) {
+            for(int row = 0; row < rows; row++) {
+                writer.write(id(row));
+                writer.write(DELIMITER);
+                writer.write(df.format(new Date(START_DATE + random.nextInt(366 * 24 * 3600) * 1000L)));
+                writer.write(DELIMITER);
+                writer.write(Float.toString(random.nextFloat() * 360 - 180));
+                writer.write(DELIMITER);
+                writer.write(Float.toString(random.nextFloat() * 180 - 90));
+                writer.write(DELIMITER);
+                writer.write("Picture " + row);
+                writer.write(DELIMITER);
+                writer.write(URL);
+                writer.write('\n');
+            }
+        }
+    }
+}
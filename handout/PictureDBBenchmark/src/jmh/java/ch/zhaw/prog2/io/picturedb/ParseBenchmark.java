@@ -0,0 +1,75 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link PictureRecordParser} with the former parsing
+ * using String.split, SimpleDateFormat and Float.parseFloat.
+ * Both parse the same 10000 lines of a generated datafile (see {@link BenchmarkData}) per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParseBenchmark {
+    private static final int ROWS = 10000;
+    private static final String DELIMITER = "; ";
+
+    private final List<byte[]> lines = new ArrayList<>();
+    private final PictureRecordParser parser = new PictureRecordParser();
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        try(InputStream in = Files.newInputStream(BenchmarkData.datafile(ROWS).toPath());
+            RecordReader reader = new RecordReader(in)) {
+            while(reader.next()) {
+                lines.add(reader.line().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Benchmark
+    public int parser() throws ParseException, MalformedURLException {
+        int hash = 0;
+        for(byte[] line : lines) {
+            hash += parser.parse(line, line.length).getTitle().length();
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public int legacy() throws ParseException, MalformedURLException {
+        int hash = 0;
+        for(byte[] line : lines) {
+            String[] record = new String(line, StandardCharsets.UTF_8).split(DELIMITER);
+            Picture picture = new Picture(record[0],
+                new URL(record[5]),
+                dateFormat.parse(record[1]),
+                record[4],
+                Float.parseFloat(record[2]),
+                Float.parseFloat(record[3]));
+            hash += picture.getTitle().length();
+        }
+        return hash;
+    }
+}
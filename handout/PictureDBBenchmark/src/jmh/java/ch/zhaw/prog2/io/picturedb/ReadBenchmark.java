@@ -0,0 +1,74 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the read operations of {@link FilePictureDatasource} on generated datafiles
+ * (see {@link BenchmarkData}). Throughput and latency distribution are measured,
+ * the allocation rate is reported by the gc profiler configured in build.gradle.
+ * The datafile is not modified, so it is shared by all iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    private int rows;
+
+    @Param({"BUFFERED", "MAPPED", "PARALLEL"})
+    private FilePictureDatasource.ReadMode readMode;
+
+    private FilePictureDatasource datasource;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ParseException {
+        File file = BenchmarkData.datafile(rows);
+        datasource = new FilePictureDatasource(file.getPath());
+        datasource.setReadMode(readMode);
+        // load or build the grid index, so it is not part of the measurement
+        datasource.findByPosition(0, 0, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        datasource.close();
+    }
+
+    @Benchmark
+    public Picture findById() throws IOException, ParseException, RecordNotFoundException {
+        return datasource.findById(BenchmarkData.id(ThreadLocalRandom.current().nextInt(rows)));
+    }
+
+    @Benchmark
+    public Collection<Picture> findAll() throws IOException, ParseException {
+        return datasource.findAll();
+    }
+
+    @Benchmark
+    public Collection<Picture> findByPosition() throws IOException, ParseException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return datasource.findByPosition(random.nextFloat() * 360 - 180, random.nextFloat() * 180 - 90, 1.0f);
+    }
+
+    @Benchmark
+    public int count() throws IOException {
+        return datasource.count();
+    }
+}
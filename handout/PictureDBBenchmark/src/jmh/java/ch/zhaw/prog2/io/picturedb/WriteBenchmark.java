@@ -0,0 +1,98 @@
+package ch.zhaw.prog2.io.picturedb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the modifying operations of {@link FilePictureDatasource} on generated datafiles
+ * (see {@link BenchmarkData}). Each iteration works on a fresh copy of the datafile,
+ * so all iterations start with the same number of rows.
+ * Throughput and latency distribution are measured,
+ * the allocation rate is reported by the gc profiler configured in build.gradle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WriteBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    private int rows;
+
+    @Param({"REWRITE", "LOG_STRUCTURED"})
+    private FilePictureDatasource.StorageMode storageMode;
+
+    private final URL url;
+    private final Date date = new Date();
+    private File file;
+    private FilePictureDatasource datasource;
+    private int nextRow;
+    private int inserted;
+    private final List<Picture> deleted = new ArrayList<>();
+
+    public WriteBenchmark() throws IOException {
+        url = new URL(BenchmarkData.URL);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        file = BenchmarkData.workingCopy(rows, "write-" + storageMode);
+        datasource = new FilePictureDatasource(file.getPath(), storageMode);
+        nextRow = 0;
+        deleted.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        datasource.close();
+        BenchmarkData.deleteWithSidecars(file);
+    }
+
+    @Benchmark
+    public void insert() throws IOException {
+        datasource.insert(new Picture("inserted-" + inserted++, url, date, "Inserted picture", 8.5f, 47.4f));
+    }
+
+    @Benchmark
+    public void update() throws IOException, RecordNotFoundException {
+        int row = nextRow();
+        datasource.update(new Picture(BenchmarkData.id(row), url, date, "Updated picture " + row, 8.5f, 47.4f));
+    }
+
+    /**
+     * Deletes the records in the order of the file. When all records have been deleted,
+     * they are inserted again with a single batch, which is included in the measurement
+     * (at most once every 'rows' operations).
+     */
+    @Benchmark
+    public void delete() throws IOException, RecordNotFoundException {
+        if(deleted.size() == rows) {
+            datasource.insertAll(deleted);
+            deleted.clear();
+        }
+        Picture picture = new Picture(BenchmarkData.id(nextRow()), url, date, "", 0, 0);
+        datasource.delete(picture);
+        deleted.add(picture);
+    }
+
+    private int nextRow() {
+        int row = nextRow;
+        nextRow = (nextRow + 1) % rows;
+        return row;
+    }
+}